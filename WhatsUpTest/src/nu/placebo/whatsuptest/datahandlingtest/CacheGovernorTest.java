@@ -0,0 +1,157 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nu.placebo.whatsup.datahandling.CacheGovernor;
+import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.DatabaseHelper;
+import nu.placebo.whatsup.datahandling.RegionPack;
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Stores more markers than a small quota allows, uses some of them, and
+ * checks that the governor evicts the least recently used ones, with their
+ * annotations, comments and search text, down to the low-water mark. The
+ * markers are put far out at sea, with nids the server does not hand out.
+ * Every other cached marker was used before them, so it is evicted as well.
+ */
+public class CacheGovernorTest extends AndroidTestCase {
+
+	private static final int BASE_NID = 1700000000;
+	private static final int[] AREA = {-40000000, -20000000, -41000000, -21000000};
+
+	//Never used after they are stored, so they go first.
+	private static final int UNUSED = 100;
+	//Read as annotations, so they are cached in memory, and then left alone.
+	private static final int READ = 10;
+	//Used last, so they are the ones kept.
+	private static final int USED = 90;
+
+	//Where the used markers lie, east of the others.
+	private static final int USED_LONG = AREA[3] + 800000;
+
+	private static final int MAX_ROWS = 100;
+
+	private DataProvider provider;
+	private CacheGovernor governor;
+
+	public CacheGovernorTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = DataProvider.getDataProvider(getContext());
+		governor = provider.getCacheGovernor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		governor.setQuota(CacheGovernor.DEFAULT_MAX_ROWS, CacheGovernor.DEFAULT_MAX_BYTES);
+		provider.flush();
+		super.tearDown();
+	}
+
+	public void testLeastRecentlyUsedAreEvicted() throws Exception {
+		long fetchDate = System.currentTimeMillis() - 1000;
+		provider.importRegionPack(new ByteArrayInputStream(write(fetchDate)));
+		provider.flush();
+		assertEquals(UNUSED + READ + USED, count("SELECT COUNT(*) FROM geolocations WHERE nid "
+				+ range(0, UNUSED + READ + USED)));
+
+		for(int i = UNUSED; i < UNUSED + READ; i++) {
+			assertNotNull(provider.getAnnotation(BASE_NID + i).getLocalData());
+		}
+		int cached = provider.getAnnotationCache().size();
+		Thread.sleep(20);
+		List<GeoLocation> used = provider.getAnnotationMarkerPage(AREA[0], USED_LONG - 1000,
+				AREA[2], AREA[1], Integer.MIN_VALUE, 1000);
+		assertEquals(USED, used.size());
+		int evictedBefore = governor.getEvictedRows();
+
+		governor.setQuota(MAX_ROWS, Long.MAX_VALUE);
+		provider.flush();
+
+		//Down to the low-water mark, 90% of the quota.
+		assertEquals(USED, count("SELECT COUNT(*) FROM geolocations"));
+		assertEquals(USED, count("SELECT COUNT(*) FROM geolocations WHERE nid "
+				+ range(UNUSED + READ, USED)));
+		assertTrue(governor.getEvictedRows() - evictedBefore >= UNUSED + READ);
+
+		//The annotations, comments and search text of the evicted markers went with them.
+		String evicted = range(0, UNUSED + READ);
+		assertEquals(0, count("SELECT COUNT(*) FROM anntations WHERE nid " + evicted));
+		assertEquals(0, count("SELECT COUNT(*) FROM comments WHERE nid " + evicted));
+		assertEquals(0, count("SELECT COUNT(*) FROM search WHERE docid " + evicted));
+		assertEquals(USED, count("SELECT COUNT(*) FROM anntations WHERE nid "
+				+ range(UNUSED + READ, USED)));
+		assertEquals(USED, count("SELECT COUNT(*) FROM comments WHERE nid "
+				+ range(UNUSED + READ, USED)));
+
+		//The area held evicted markers, so it is no longer known to be fetched.
+		assertEquals(0, count("SELECT COUNT(*) FROM fetched_regions WHERE max_lat = " + AREA[0]
+				+ " AND min_lat = " + AREA[2]));
+
+		//The spatial index and the annotation cache were updated after the commit.
+		Set<Integer> left = new HashSet<Integer>();
+		for(GeoLocation gl : provider.getAnnotationMarkerPage(AREA[0], AREA[1], AREA[2], AREA[3],
+				Integer.MIN_VALUE, 1000)) {
+			left.add(gl.getId());
+		}
+		assertEquals(USED, left.size());
+		for(GeoLocation gl : used) {
+			assertTrue(left.contains(gl.getId()));
+		}
+		assertEquals(cached - READ, provider.getAnnotationCache().size());
+	}
+
+	//Writes a pack of the unused, read and used markers, each with a comment.
+	private byte[] write(long fetchDate) throws IOException {
+		int count = UNUSED + READ + USED;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RegionPack.Writer writer = new RegionPack.Writer(out, AREA, fetchDate, count);
+		for(int i = 0; i < count; i++) {
+			List<Comment> comments = new ArrayList<Comment>();
+			comments.add(new Comment("Author", "Comment " + i, null, new Date(fetchDate)));
+			int lon = (i < UNUSED + READ ? AREA[3] + 100000 : USED_LONG);
+			writer.write(new Annotation(new GeoLocation(BASE_NID + i, AREA[2] + 1000 + i * 1000,
+					lon, "Title " + i), "Body " + i, "Author", comments));
+		}
+		writer.finish();
+		return out.toByteArray();
+	}
+
+	//The SQL condition for the count nids from the given offset.
+	private static String range(int from, int count) {
+		return "BETWEEN " + (BASE_NID + from) + " AND " + (BASE_NID + from + count - 1);
+	}
+
+	private long count(String query) {
+		SQLiteDatabase db = DatabaseHelper.openReadOnly(
+				getContext().getDatabasePath("whatsup.db").getPath());
+		try {
+			Cursor c = db.rawQuery(query, null);
+			try {
+				assertTrue(c.moveToFirst());
+				return c.getLong(0);
+			} finally {
+				c.close();
+			}
+		} finally {
+			db.close();
+		}
+	}
+}
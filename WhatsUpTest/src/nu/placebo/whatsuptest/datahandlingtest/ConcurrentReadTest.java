@@ -0,0 +1,110 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.io.File;
+import java.util.Arrays;
+
+import nu.placebo.whatsup.datahandling.DatabaseHelper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures how long queries take while a bulk insert is running on the write
+ * connection. With write-ahead logging, they run on a separate read
+ * connection; without it, they share the write connection, as they do in
+ * DatabaseHelper.getReaderDatabase.
+ */
+public class ConcurrentReadTest extends AndroidTestCase {
+
+	private static final int EXISTING_ROWS = 10000;
+	private static final int INSERTED_ROWS = 50000;
+
+	private File file;
+	private SQLiteDatabase writer;
+	private SQLiteDatabase reader;
+
+	public ConcurrentReadTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = new File(getContext().getCacheDir(), "concurrent_read_test.db");
+		file.delete();
+		writer = SQLiteDatabase.openOrCreateDatabase(file, null);
+		boolean wal = DatabaseHelper.enableWriteAheadLog(writer);
+		Log.i("ConcurrentReadTest", "Write-ahead logging: " + wal);
+		writer.execSQL("CREATE TABLE geolocations (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "nid INTEGER, latitude INTEGER, longitude INTEGER, title TEXT);");
+		writer.execSQL("CREATE UNIQUE INDEX geolocations_nid ON geolocations (nid);");
+		insert(0, EXISTING_ROWS);
+		reader = (wal ? DatabaseHelper.openReadOnly(writer.getPath()) : writer);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(reader != writer) {
+			reader.close();
+		}
+		writer.close();
+		file.delete();
+		new File(file.getPath() + "-wal").delete();
+		new File(file.getPath() + "-shm").delete();
+		super.tearDown();
+	}
+
+	public void testQueryLatencyDuringBulkInsert() throws Exception {
+		Thread bulkInsert = new Thread() {
+			public void run() {
+				insert(EXISTING_ROWS, INSERTED_ROWS);
+			}
+		};
+		bulkInsert.start();
+
+		long[] latencies = new long[1000];
+		int queries = 0;
+		while(queries < latencies.length && (bulkInsert.isAlive() || queries < 100)) {
+			long start = System.nanoTime();
+			Cursor c = reader.rawQuery("SELECT latitude, longitude, title FROM geolocations WHERE nid = ?",
+					new String[] {Integer.toString(queries * 7 % EXISTING_ROWS)});
+			assertTrue(c.moveToFirst());
+			c.close();
+			latencies[queries++] = System.nanoTime() - start;
+		}
+		bulkInsert.join();
+
+		Arrays.sort(latencies, 0, queries);
+		Log.i("ConcurrentReadTest", queries + " queries during bulk insert: p50 "
+				+ percentile(latencies, queries, 50) + " us, p90 "
+				+ percentile(latencies, queries, 90) + " us, p99 "
+				+ percentile(latencies, queries, 99) + " us, max "
+				+ latencies[queries - 1] / 1000 + " us");
+	}
+
+	private long percentile(long[] sorted, int count, int p) {
+		return sorted[Math.min(count - 1, count * p / 100)] / 1000;
+	}
+
+	//Inserts rows in one transaction, like the database writer does with a batch.
+	private void insert(int first, int count) {
+		SQLiteStatement s = writer.compileStatement(
+				"INSERT OR REPLACE INTO geolocations (nid, latitude, longitude, title) VALUES (?, ?, ?, ?)");
+		writer.beginTransaction();
+		try {
+			for(int i = first; i < first + count; i++) {
+				s.bindLong(1, i);
+				s.bindLong(2, 57000000 + i);
+				s.bindLong(3, 11000000 + i);
+				s.bindString(4, "Marker " + i);
+				s.executeInsert();
+			}
+			writer.setTransactionSuccessful();
+		} finally {
+			writer.endTransaction();
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import nu.placebo.whatsup.datahandling.DataChangeListener;
+import nu.placebo.whatsup.datahandling.DataReturn;
+import nu.placebo.whatsup.datahandling.DataReturnListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a DataReturn delivers its result to listeners added before or
+ * after it arrives, without blocking, and that timeouts and cancellation work.
+ * The DataReturns are not registered with the DataProvider, so their id is -1.
+ */
+public class DataReturnTest extends AndroidTestCase {
+
+	public DataReturnTest() {
+		super();
+	}
+
+	public void testResultBeforeListenerIsBuffered() {
+		DataReturn<String> dr = new DataReturn<String>("old", -1);
+		dr.operationExcecuted(result("new"));
+
+		RecordingListener listener = new RecordingListener();
+		dr.addDataReturnListener(listener);
+		assertEquals(1, listener.calls.size());
+		assertTrue(listener.calls.get(0));
+		assertEquals("new", dr.getNewData().getResult());
+	}
+
+	public void testListenerBeforeResult() {
+		DataReturn<String> dr = new DataReturn<String>("same", -1);
+		RecordingListener listener = new RecordingListener();
+		dr.addDataReturnListener(listener);
+		assertTrue(listener.calls.isEmpty());
+
+		dr.operationExcecuted(result("same"));
+		assertEquals(1, listener.calls.size());
+		assertFalse(listener.calls.get(0));
+		assertNull(dr.getNewData());
+	}
+
+	public void testNoLocalData() {
+		DataReturn<String> dr = new DataReturn<String>(null, -1);
+		dr.operationExcecuted(result("new"));
+		assertEquals("new", dr.getNewData().getResult());
+	}
+
+	public void testListenerRunsOnItsExecutor() {
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		Executor queue = new Executor() {
+			public void execute(Runnable r) {
+				queued.add(r);
+			}
+		};
+		DataReturn<String> dr = new DataReturn<String>("old", -1);
+		RecordingListener listener = new RecordingListener();
+		dr.addDataReturnListener(listener, queue);
+		dr.operationExcecuted(result("new"));
+
+		assertTrue(listener.calls.isEmpty());
+		assertEquals(1, queued.size());
+		queued.get(0).run();
+		assertEquals(1, listener.calls.size());
+	}
+
+	public void testTimeout() throws InterruptedException {
+		final CountDownLatch called = new CountDownLatch(1);
+		//The listener runs on the timer thread, where a failed assertion would
+		//not fail the test, so it only records what it was called with.
+		final boolean[] isNew = new boolean[1];
+		DataReturn<String> dr = new DataReturn<String>("old", -1);
+		dr.addDataReturnListener(new DataReturnListener() {
+			public void newDataReceived(boolean dataIsNew) {
+				isNew[0] = dataIsNew;
+				called.countDown();
+			}
+		});
+		dr.setTimeout(50, TimeUnit.MILLISECONDS);
+
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		assertFalse(isNew[0]);
+		assertTrue(dr.hasTimedOut());
+		dr.operationExcecuted(result("late"));
+		assertNull(dr.getNewData());
+	}
+
+	public void testCancel() {
+		DataReturn<String> dr = new DataReturn<String>("old", -1);
+		RecordingListener listener = new RecordingListener();
+		dr.addDataReturnListener(listener);
+
+		assertTrue(dr.cancel());
+		assertFalse(dr.cancel());
+		dr.operationExcecuted(result("new"));
+		dr.addDataReturnListener(listener);
+		assertTrue(dr.isCancelled());
+		assertTrue(listener.calls.isEmpty());
+	}
+
+	public void testChangeListenerOnlyCalledOnChange() {
+		final List<String> changes = new ArrayList<String>();
+		DataChangeListener<String> listener = new DataChangeListener<String>() {
+			public void dataChanged(String newData) {
+				changes.add(newData);
+			}
+		};
+		DataReturn<String> same = new DataReturn<String>("same", -1);
+		same.addDataChangeListener(listener, DataReturn.CALLING_THREAD);
+		same.operationExcecuted(result("same"));
+		assertTrue(changes.isEmpty());
+
+		DataReturn<String> changed = new DataReturn<String>("old", -1);
+		changed.addDataChangeListener(listener, DataReturn.CALLING_THREAD);
+		changed.operationExcecuted(result("new"));
+		changed.operationExcecuted(result("newer"));
+		assertEquals(1, changes.size());
+		assertEquals("new", changes.get(0));
+	}
+
+	public void testComparatorDecidesWhatChanged() {
+		final List<String> changes = new ArrayList<String>();
+		DataChangeListener<String> listener = new DataChangeListener<String>() {
+			public void dataChanged(String newData) {
+				changes.add(newData);
+			}
+		};
+		DataReturn<String> same = new DataReturn<String>("Same", -1, String.CASE_INSENSITIVE_ORDER);
+		same.addDataChangeListener(listener, DataReturn.CALLING_THREAD);
+		same.operationExcecuted(result("SAME"));
+		assertTrue(changes.isEmpty());
+
+		DataReturn<String> changed = new DataReturn<String>("old", -1, String.CASE_INSENSITIVE_ORDER);
+		changed.addDataChangeListener(listener, DataReturn.CALLING_THREAD);
+		changed.operationExcecuted(result("new"));
+		assertEquals(1, changes.size());
+	}
+
+	private OperationResult<String> result(String s) {
+		return new OperationResult<String>(false, 200, "OK", s);
+	}
+
+	private static class RecordingListener implements DataReturnListener {
+		final List<Boolean> calls = new ArrayList<Boolean>();
+
+		public void newDataReceived(boolean dataIsNew) {
+			calls.add(dataIsNew);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import nu.placebo.whatsup.datahandling.DatabaseHelper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Upgrades a populated database with the version 2 schema and checks that the
+ * cached data survives.
+ */
+public class DatabaseMigrationTest extends AndroidTestCase {
+
+	private static final int ROWS = 100;
+
+	private SQLiteDatabase db;
+
+	public DatabaseMigrationTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE geolocations (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "nid INTEGER, latitude INTEGER, longitude INTEGER, title TEXT);");
+		db.execSQL("CREATE TABLE anntations (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "nid INTEGER, body TEXT, author TEXT);");
+		db.execSQL("CREATE TABLE comments (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "nid REAL, comment TEXT, author TEXT, title TEXT, added_date INTEGER);");
+		db.execSQL("CREATE TABLE reference_points (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "name TEXT, latitude INTEGER, longitude INTEGER, current INTEGER);");
+
+		for(int i = 0; i < ROWS; i++) {
+			db.execSQL("INSERT INTO geolocations (nid, latitude, longitude, title) VALUES (?, ?, ?, ?)",
+					new Object[] {i, 57000000 + i, 11000000 + i, "Title " + i});
+			db.execSQL("INSERT INTO anntations (nid, body, author) VALUES (?, ?, ?)",
+					new Object[] {i, "Body " + i, "Author " + i});
+			db.execSQL("INSERT INTO comments (nid, comment, author, title, added_date) VALUES (?, ?, ?, ?, ?)",
+					new Object[] {(double) i, "Comment " + i, "Author " + i, "Title " + i, 1000L * i});
+			db.execSQL("INSERT INTO comments (nid, comment, author, title, added_date) VALUES (?, ?, ?, ?, ?)",
+					new Object[] {(double) i, "Comment", "Author", "Title", "Mon Oct 10 12:00:00 CEST 2011"});
+		}
+		db.execSQL("INSERT INTO reference_points (name, latitude, longitude, current) "
+				+ "VALUES ('physical_position', 57706900, 11982051, 0)");
+		db.execSQL("INSERT INTO reference_points (name, latitude, longitude, current) "
+				+ "VALUES ('Home', 57000000, 11000000, 1)");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	public void testNoRowsLost() {
+		DatabaseHelper.upgrade(db, 2);
+
+		assertEquals(ROWS, count("SELECT COUNT(*) FROM geolocations"));
+		assertEquals(ROWS, count("SELECT COUNT(*) FROM anntations"));
+		assertEquals(2 * ROWS, count("SELECT COUNT(*) FROM comments"));
+		assertEquals(2, count("SELECT COUNT(*) FROM reference_points"));
+		assertEquals(1, count("SELECT COUNT(*) FROM reference_points WHERE current = 1"));
+	}
+
+	public void testCommentsAreKeyedByInteger() {
+		DatabaseHelper.upgrade(db, 2);
+
+		assertEquals(0, count("SELECT COUNT(*) FROM comments WHERE typeof(nid) != 'integer'"));
+		assertEquals(2, count("SELECT COUNT(*) FROM comments WHERE nid = 42"));
+		assertEquals(42000, count("SELECT added_date FROM comments WHERE nid = 42 AND title = 'Title 42'"));
+	}
+
+	public void testSameLookingCommentsAreKept() {
+		//Version 2 dated every comment "N/A", so distinct comments by the
+		//same author under the same title look alike but for their text.
+		for(int i = 0; i < 2; i++) {
+			db.execSQL("INSERT INTO comments (nid, comment, author, title, added_date) VALUES (?, ?, ?, ?, ?)",
+					new Object[] {7.0, "Look-alike " + i, "Author", "Title", "N/A"});
+		}
+
+		DatabaseHelper.upgrade(db, 2);
+
+		assertEquals(4, count("SELECT COUNT(*) FROM comments WHERE nid = 7"));
+		assertEquals(1, count("SELECT COUNT(*) FROM comments WHERE nid = 7 AND comment = 'Look-alike 0'"));
+		assertEquals(1, count("SELECT COUNT(*) FROM comments WHERE nid = 7 AND comment = 'Look-alike 1'"));
+
+		//Comments added after the upgrade are not merged either.
+		for(int i = 0; i < 2; i++) {
+			db.execSQL("INSERT INTO comments (nid, comment, author, title, added_date) VALUES (?, ?, ?, ?, ?)",
+					new Object[] {7, "Comment " + i, "Author", null, 5000L});
+		}
+		assertEquals(6, count("SELECT COUNT(*) FROM comments WHERE nid = 7"));
+	}
+
+	public void testDuplicatesAreMerged() {
+		db.execSQL("INSERT INTO geolocations (nid, latitude, longitude, title) VALUES (1, 0, 0, 'Newer')");
+
+		DatabaseHelper.upgrade(db, 2);
+
+		assertEquals(ROWS, count("SELECT COUNT(*) FROM geolocations"));
+		Cursor c = db.rawQuery("SELECT title FROM geolocations WHERE nid = 1", null);
+		assertTrue(c.moveToFirst());
+		assertEquals("Newer", c.getString(0));
+		c.close();
+	}
+
+	public void testCachedRowsCountAsNeverFetched() {
+		DatabaseHelper.upgrade(db, 2);
+
+		assertEquals(ROWS, count("SELECT COUNT(*) FROM geolocations WHERE fetched_date = 0"));
+		assertEquals(ROWS, count("SELECT COUNT(*) FROM anntations WHERE fetched_date = 0"));
+		assertEquals(0, count("SELECT COUNT(*) FROM fetched_regions"));
+	}
+
+	private long count(String query) {
+		Cursor c = db.rawQuery(query, null);
+		try {
+			assertTrue(c.moveToFirst());
+			return c.getLong(0);
+		} finally {
+			c.close();
+		}
+	}
+}
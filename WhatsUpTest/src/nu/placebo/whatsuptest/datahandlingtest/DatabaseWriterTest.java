@@ -0,0 +1,101 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.DatabaseHelper;
+import nu.placebo.whatsup.model.ReferencePoint;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Queues coalesced writes through the DataProvider and reads back what the
+ * database writer committed. A write replacing a pending one must still run
+ * after the writes queued between the two.
+ */
+public class DatabaseWriterTest extends AndroidTestCase {
+
+	private DataProvider provider;
+	private String prefix;
+
+	public DatabaseWriterTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = DataProvider.getDataProvider(getContext());
+		prefix = "DatabaseWriterTest " + System.currentTimeMillis() + " ";
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		provider.setCurrentReferencePoint(-1);
+		for(ReferencePoint rp : provider.getAllReferencePoints()) {
+			if(rp.getName().startsWith(prefix)) {
+				provider.removeReferencePoint(rp.getId());
+			}
+		}
+		provider.flush();
+		super.tearDown();
+	}
+
+	public void testCoalescedWriteRunsAfterWritesQueuedBeforeIt() throws InterruptedException {
+		provider.addReferencePoint(new GeoPoint(57000000, 11000000), prefix + "A");
+		provider.flush();
+		int a = find(prefix + "A");
+
+		//The second update replaces the first, which was queued before the insert.
+		provider.setCurrentReferencePoint(a);
+		provider.addReferencePoint(new GeoPoint(57100000, 11100000), prefix + "X");
+		int x = find(prefix + "X");
+		provider.setCurrentReferencePoint(x);
+		provider.flush();
+
+		assertEquals(x, provider.getCurrentReferencePoint().getId());
+		assertEquals(prefix + "X", storedCurrent());
+	}
+
+	public void testLastCoalescedWriteWins() throws InterruptedException {
+		provider.addReferencePoint(new GeoPoint(57000000, 11000000), prefix + "A");
+		provider.addReferencePoint(new GeoPoint(57100000, 11100000), prefix + "B");
+		int a = find(prefix + "A");
+		int b = find(prefix + "B");
+		provider.setCurrentReferencePoint(b);
+		provider.setCurrentReferencePoint(a);
+		provider.flush();
+
+		assertEquals(prefix + "A", storedCurrent());
+	}
+
+	//Finds a reference point that is not the current one by its name.
+	private int find(String name) {
+		for(ReferencePoint rp : provider.getAllReferencePoints()) {
+			if(rp.getName().equals(name)) {
+				return rp.getId();
+			}
+		}
+		fail("No reference point named " + name);
+		return -1;
+	}
+
+	//Reads the name of the point marked as current in the database.
+	private String storedCurrent() {
+		SQLiteDatabase db = DatabaseHelper.openReadOnly(
+				getContext().getDatabasePath("whatsup.db").getPath());
+		try {
+			Cursor c = db.rawQuery("SELECT name FROM reference_points WHERE current = 1", null);
+			try {
+				assertTrue("No current reference point stored", c.moveToFirst());
+				assertEquals(1, c.getCount());
+				return c.getString(0);
+			} finally {
+				c.close();
+			}
+		} finally {
+			db.close();
+		}
+	}
+}
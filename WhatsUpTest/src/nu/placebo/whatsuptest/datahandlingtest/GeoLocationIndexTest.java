@@ -0,0 +1,198 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import nu.placebo.whatsup.datahandling.GeoLocationIndex;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests the spatial index, and compares its query latency with the range
+ * query against the unindexed geolocation table it replaces.
+ */
+public class GeoLocationIndexTest extends AndroidTestCase {
+
+	private static final int QUERIES = 50;
+
+	private GeoLocationIndex index;
+
+	public GeoLocationIndexTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		index = new GeoLocationIndex();
+	}
+
+	public void testQueryIsStrict() {
+		index.put(new GeoLocation(1, 10, 10, "inside"));
+		index.put(new GeoLocation(2, 20, 10, "on the edge"));
+		index.put(new GeoLocation(3, 30, 30, "outside"));
+
+		List<GeoLocation> result = index.query(20, 20, 0, 0, -1);
+		assertEquals(1, result.size());
+		assertEquals(1, result.get(0).getId());
+	}
+
+	public void testPutReplacesSameId() {
+		index.put(new GeoLocation(1, 10, 10, "old"));
+		index.put(new GeoLocation(1, 50, 50, "new"));
+
+		assertEquals(1, index.size());
+		assertTrue(index.query(20, 20, 0, 0, -1).isEmpty());
+		assertEquals("new", index.query(60, 60, 40, 40, -1).get(0).getTitle());
+	}
+
+	public void testRemove() {
+		Random r = new Random(1);
+		for(int i = 0; i < 1000; i++) {
+			index.put(new GeoLocation(i, r.nextInt(1000000), r.nextInt(1000000), "" + i));
+		}
+		for(int i = 0; i < 1000; i += 2) {
+			assertTrue(index.remove(i));
+		}
+		assertFalse(index.remove(0));
+
+		List<GeoLocation> result = index.query(1000000, 1000000, -1, -1, -1);
+		assertEquals(500, result.size());
+		for(GeoLocation gl : result) {
+			assertEquals(1, gl.getId() % 2);
+		}
+	}
+
+	public void testPagesCoverAreaInOrder() {
+		Random r = new Random(4);
+		for(int i = 0; i < 1000; i++) {
+			index.put(new GeoLocation(r.nextInt(100000), r.nextInt(1000), r.nextInt(1000), "" + i));
+		}
+		int expected = index.query(500, 500, 0, 0, -1).size();
+
+		int seen = 0;
+		int last = Integer.MIN_VALUE;
+		List<GeoLocation> page;
+		do {
+			page = index.queryPage(500, 500, 0, 0, last, 30);
+			for(GeoLocation gl : page) {
+				assertTrue(gl.getId() > last);
+				last = gl.getId();
+				seen++;
+			}
+		} while(page.size() == 30);
+		assertEquals(expected, seen);
+	}
+
+	public void testMatchesTableScan() {
+		Random r = new Random(2);
+		SQLiteDatabase db = createTable(r, 5000);
+		for(int i = 0; i < QUERIES; i++) {
+			int[] area = randomArea(r);
+			Set<Integer> expected = new HashSet<Integer>();
+			Cursor c = scan(db, area);
+			while(c.moveToNext()) {
+				expected.add(c.getInt(0));
+			}
+			c.close();
+
+			Set<Integer> actual = new HashSet<Integer>();
+			for(GeoLocation gl : index.query(area[0], area[1], area[2], area[3], -1)) {
+				actual.add(gl.getId());
+			}
+			assertEquals(expected, actual);
+		}
+		db.close();
+	}
+
+	/**
+	 * Not a test as such. Logs the average latency of a viewport query against
+	 * the table and against the index, for a growing number of cached markers.
+	 */
+	public void testQueryLatency() {
+		Random r = new Random(3);
+		for(int size : new int[] {1000, 10000, 100000}) {
+			index.clear();
+			SQLiteDatabase db = createTable(r, size);
+
+			long start = System.nanoTime();
+			for(int i = 0; i < QUERIES; i++) {
+				Cursor c = scan(db, viewport(r));
+				while(c.moveToNext()) {
+					c.getInt(0);
+				}
+				c.close();
+			}
+			long tableTime = (System.nanoTime() - start) / QUERIES;
+
+			start = System.nanoTime();
+			for(int i = 0; i < QUERIES; i++) {
+				int[] area = viewport(r);
+				index.query(area[0], area[1], area[2], area[3], -1);
+			}
+			long indexTime = (System.nanoTime() - start) / QUERIES;
+
+			Log.i("GeoLocationIndexTest", size + " markers: table scan " +
+					tableTime / 1000 + " us, index " + indexTime / 1000 + " us");
+			db.close();
+		}
+	}
+
+	//Creates a table shaped like the geolocation table in memory, and puts
+	//the same rows in the index.
+	private SQLiteDatabase createTable(Random r, int rows) {
+		SQLiteDatabase db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE geolocations (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+				"nid INTEGER, latitude INTEGER, longitude INTEGER, title TEXT);");
+		SQLiteStatement insert = db.compileStatement(
+				"INSERT INTO geolocations (nid, latitude, longitude, title) VALUES (?, ?, ?, ?)");
+		db.beginTransaction();
+		try {
+			for(int i = 0; i < rows; i++) {
+				GeoLocation gl = new GeoLocation(i, 57000000 + r.nextInt(2000000),
+						11000000 + r.nextInt(2000000), "Marker " + i);
+				insert.bindLong(1, gl.getId());
+				insert.bindLong(2, gl.getLocation().getLatitudeE6());
+				insert.bindLong(3, gl.getLocation().getLongitudeE6());
+				insert.bindString(4, gl.getTitle());
+				insert.executeInsert();
+				index.put(gl);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			insert.close();
+		}
+		return db;
+	}
+
+	private Cursor scan(SQLiteDatabase db, int[] area) {
+		return db.query("geolocations", new String[] {"nid"},
+				"latitude < ? AND longitude < ? AND latitude > ? AND longitude > ?",
+				new String[] {Integer.toString(area[0]), Integer.toString(area[1]),
+							  Integer.toString(area[2]), Integer.toString(area[3])},
+				null, null, null);
+	}
+
+	//A city sized viewport somewhere inside the generated markers.
+	private int[] viewport(Random r) {
+		int lat = 57000000 + r.nextInt(1950000);
+		int lng = 11000000 + r.nextInt(1950000);
+		return new int[] {lat + 50000, lng + 50000, lat, lng};
+	}
+
+	private int[] randomArea(Random r) {
+		int latA = 57000000 + r.nextInt(2000000);
+		int latB = 57000000 + r.nextInt(2000000);
+		int lngA = 11000000 + r.nextInt(2000000);
+		int lngB = 11000000 + r.nextInt(2000000);
+		return new int[] {Math.max(latA, latB), Math.max(lngA, lngB),
+						  Math.min(latA, latB), Math.min(lngA, lngB)};
+	}
+}
@@ -0,0 +1,98 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nu.placebo.whatsup.datahandling.LocationIngester;
+import nu.placebo.whatsup.datahandling.PositionListener;
+import android.location.Location;
+import android.test.AndroidTestCase;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Feeds position fixes to a LocationIngester and checks which of them are
+ * passed on to the listeners and which are persisted.
+ */
+public class LocationIngesterTest extends AndroidTestCase {
+
+	private RecordingListener persisted;
+	private RecordingListener seen;
+	private LocationIngester ingester;
+
+	public LocationIngesterTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		persisted = new RecordingListener();
+		seen = new RecordingListener();
+		ingester = new LocationIngester(persisted);
+		ingester.addPositionListener(seen);
+		ingester.setMinDistance(25);
+		ingester.setPersistInterval(60 * 1000);
+	}
+
+	public void testConversionToMicrodegrees() {
+		Location location = new Location("test");
+		location.setLatitude(57.7069);
+		location.setLongitude(-11.982051);
+		GeoPoint gp = LocationIngester.toGeoPoint(location);
+		assertEquals(57706900, gp.getLatitudeE6());
+		assertEquals(-11982051, gp.getLongitudeE6());
+	}
+
+	public void testSmallMovesAreDropped() {
+		assertTrue(ingester.onFix(new GeoPoint(57706900, 11982051), 0));
+		//About 11 m north.
+		assertFalse(ingester.onFix(new GeoPoint(57707000, 11982051), 1000));
+		//About 111 m north.
+		assertTrue(ingester.onFix(new GeoPoint(57707900, 11982051), 2000));
+		assertEquals(2, seen.positions.size());
+		assertEquals(1, ingester.getDropped());
+	}
+
+	public void testPersistedAtMostOncePerInterval() {
+		for(int i = 0; i < 10; i++) {
+			ingester.onFix(new GeoPoint(57700000 + i * 1000, 11982051), i * 1000);
+		}
+		assertEquals(10, seen.positions.size());
+		assertEquals(1, persisted.positions.size());
+		assertEquals(57700000, persisted.positions.get(0).getLatitudeE6());
+
+		ingester.onFix(new GeoPoint(57800000, 11982051), 60 * 1000);
+		assertEquals(2, persisted.positions.size());
+		assertEquals(57800000, persisted.positions.get(1).getLatitudeE6());
+	}
+
+	public void testWaitingFixIsPersistedLater() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(2);
+		final List<GeoPoint> stored = new ArrayList<GeoPoint>();
+		LocationIngester ingester = new LocationIngester(new PositionListener() {
+			public void positionChanged(GeoPoint position) {
+				stored.add(position);
+				done.countDown();
+			}
+		});
+		ingester.setPersistInterval(100);
+		ingester.onFix(new GeoPoint(57700000, 11982051), 0);
+		ingester.onFix(new GeoPoint(57710000, 11982051), 10);
+		ingester.onFix(new GeoPoint(57720000, 11982051), 20);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, stored.size());
+		assertEquals(57720000, stored.get(1).getLatitudeE6());
+	}
+
+	private static class RecordingListener implements PositionListener {
+		final List<GeoPoint> positions = new ArrayList<GeoPoint>();
+
+		public void positionChanged(GeoPoint position) {
+			positions.add(position);
+		}
+	}
+}
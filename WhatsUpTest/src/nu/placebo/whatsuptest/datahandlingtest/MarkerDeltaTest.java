@@ -0,0 +1,66 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nu.placebo.whatsup.datahandling.MarkerDelta;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the delta between two sets of markers is keyed by nid, and
+ * finds exactly the markers that were added, moved, renamed or removed.
+ */
+public class MarkerDeltaTest extends AndroidTestCase {
+
+	public MarkerDeltaTest() {
+		super();
+	}
+
+	public void testDelta() {
+		List<GeoLocation> stored = Arrays.asList(
+				new GeoLocation(1, 57000000, 11000000, "same"),
+				new GeoLocation(2, 57000000, 11000000, "moved"),
+				new GeoLocation(3, 57000000, 11000000, "renamed"),
+				new GeoLocation(4, 57000000, 11000000, "removed"));
+		List<GeoLocation> fetched = Arrays.asList(
+				new GeoLocation(5, 57000000, 11000000, "added"),
+				new GeoLocation(3, 57000000, 11000000, "new name"),
+				new GeoLocation(2, 57000001, 11000000, "moved"),
+				new GeoLocation(1, 57000000, 11000000, "same"));
+
+		MarkerDelta delta = MarkerDelta.compute(stored, fetched);
+		assertEquals(1, delta.getAdded().size());
+		assertEquals(5, delta.getAdded().get(0).getId());
+		assertEquals(2, delta.getChanged().size());
+		assertEquals(3, delta.getChanged().get(0).getId());
+		assertEquals("new name", delta.getChanged().get(0).getTitle());
+		assertEquals(2, delta.getChanged().get(1).getId());
+		assertEquals(1, delta.getRemoved().size());
+		assertEquals(4, delta.getRemoved().get(0).getId());
+		assertEquals(1, delta.getUnchangedCount());
+		assertFalse(delta.isEmpty());
+	}
+
+	public void testNoChurn() {
+		List<GeoLocation> stored = new ArrayList<GeoLocation>();
+		List<GeoLocation> fetched = new ArrayList<GeoLocation>();
+		for(int i = 0; i < 1000; i++) {
+			stored.add(new GeoLocation(i, 57000000 + i, 11000000 - i, "marker " + i));
+			fetched.add(new GeoLocation(999 - i, 57000999 - i, 10999001 + i, "marker " + (999 - i)));
+		}
+		MarkerDelta delta = MarkerDelta.compute(stored, fetched);
+		assertTrue(delta.isEmpty());
+		assertEquals(1000, delta.getUnchangedCount());
+	}
+
+	public void testNullTitleAndDuplicates() {
+		List<GeoLocation> stored = Arrays.asList(new GeoLocation(1, 0, 0, (String) null));
+		List<GeoLocation> fetched = Arrays.asList(
+				new GeoLocation(1, 0, 0, (String) null),
+				new GeoLocation(1, 0, 0, "duplicate"));
+		MarkerDelta delta = MarkerDelta.compute(stored, fetched);
+		assertTrue(delta.isEmpty());
+	}
+}
@@ -0,0 +1,172 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import nu.placebo.whatsup.datahandling.MarkerDelta;
+import nu.placebo.whatsup.datahandling.MarkerStream;
+import nu.placebo.whatsup.datahandling.MarkerStreamListener;
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.test.AndroidTestCase;
+
+/**
+ * Drives a MarkerStream with an executor that only records its tasks, so the
+ * test decides when each part is delivered. Checks that stored pages arrive
+ * in order, that tiles bring the changes to what was shown, and that
+ * cancelling drops what is left.
+ */
+public class MarkerStreamTest extends AndroidTestCase {
+
+	private RecordingExecutor executor;
+	private RecordingListener listener;
+	private MarkerStream stream;
+
+	public MarkerStreamTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = new RecordingExecutor();
+		listener = new RecordingListener();
+		stream = new MarkerStream(listener, executor);
+	}
+
+	public void testStoredPagesArriveInOrder() {
+		List<GeoLocation> stored = new ArrayList<GeoLocation>();
+		for(int i = 0; i < 25; i++) {
+			stored.add(marker(i, 57000000 + i, "Marker " + i));
+		}
+		stream.offerStored(stored, 10);
+		assertTrue(listener.deltas.isEmpty());
+		assertFalse(stream.isDone());
+
+		executor.runAll();
+		assertEquals(3, listener.deltas.size());
+		assertEquals(10, listener.deltas.get(0).getAdded().size());
+		assertEquals(0, listener.deltas.get(0).getAdded().get(0).getId());
+		assertEquals(10, listener.deltas.get(1).getAdded().get(0).getId());
+		assertEquals(5, listener.deltas.get(2).getAdded().size());
+		assertEquals(20, listener.deltas.get(2).getAdded().get(0).getId());
+		assertTrue(stream.isDone());
+		assertTrue(stream.getFirstMarkerMillis() >= 0);
+	}
+
+	public void testOnePartPerTask() {
+		stream.offerStored(Arrays.asList(marker(1, 57000001, "a"), marker(2, 57000002, "b")), 1);
+		assertEquals(1, executor.tasks.size());
+		executor.runNext();
+		assertEquals(1, listener.deltas.size());
+		assertEquals(1, executor.tasks.size());
+		executor.runNext();
+		assertEquals(2, listener.deltas.size());
+		assertTrue(executor.tasks.isEmpty());
+	}
+
+	public void testTileBringsChangesToWhatWasShown() {
+		stream.offerStored(Arrays.asList(
+				marker(1, 57000100, "kept"),
+				marker(2, 57000200, "renamed"),
+				marker(3, 57000300, "removed"),
+				marker(4, 58000000, "outside the tile")), 10);
+		NetworkOperationListener<List<GeoLocation>> tile = stream.tileListener(
+				57001000, 11001000, 57000000, 11000000);
+		executor.runAll();
+		assertFalse(stream.isDone());
+
+		tile.operationExcecuted(result(Arrays.asList(
+				marker(1, 57000100, "kept"),
+				marker(2, 57000200, "new name"),
+				marker(5, 57000500, "added"),
+				marker(6, 59000000, "outside the tile"))));
+		executor.runAll();
+		assertEquals(2, listener.deltas.size());
+		MarkerDelta delta = listener.deltas.get(1);
+		assertEquals(1, delta.getAdded().size());
+		assertEquals(5, delta.getAdded().get(0).getId());
+		assertEquals(1, delta.getChanged().size());
+		assertEquals("new name", delta.getChanged().get(0).getTitle());
+		assertEquals(1, delta.getRemoved().size());
+		assertEquals(3, delta.getRemoved().get(0).getId());
+		assertTrue(stream.isDone());
+	}
+
+	public void testUnchangedTileDeliversNothing() {
+		stream.offerStored(Arrays.asList(marker(1, 57000100, "kept")), 10);
+		NetworkOperationListener<List<GeoLocation>> tile = stream.tileListener(
+				57001000, 11001000, 57000000, 11000000);
+		tile.operationExcecuted(result(Arrays.asList(marker(1, 57000100, "kept"))));
+		executor.runAll();
+		assertEquals(1, listener.deltas.size());
+		assertTrue(stream.isDone());
+	}
+
+	public void testFailedTileIsDone() {
+		NetworkOperationListener<List<GeoLocation>> tile = stream.tileListener(
+				57001000, 11001000, 57000000, 11000000);
+		assertFalse(stream.isDone());
+		tile.operationExcecuted(new OperationResult<List<GeoLocation>>(true, 500, "Error", null));
+		assertTrue(stream.isDone());
+		assertTrue(listener.deltas.isEmpty());
+	}
+
+	public void testCancelDuringDelivery() {
+		List<GeoLocation> stored = new ArrayList<GeoLocation>();
+		for(int i = 0; i < 30; i++) {
+			stored.add(marker(i, 57000000 + i, "Marker " + i));
+		}
+		stream.offerStored(stored, 10);
+		NetworkOperationListener<List<GeoLocation>> tile = stream.tileListener(
+				57001000, 11001000, 57000000, 11000000);
+		executor.runNext();
+		assertEquals(1, listener.deltas.size());
+
+		stream.cancel();
+		assertTrue(stream.isDone());
+		executor.runAll();
+		tile.operationExcecuted(result(Arrays.asList(marker(100, 57000500, "late"))));
+		executor.runAll();
+		assertEquals(1, listener.deltas.size());
+	}
+
+	private static GeoLocation marker(int nid, int latitude, String title) {
+		return new GeoLocation(nid, latitude, 11000500, title);
+	}
+
+	private static OperationResult<List<GeoLocation>> result(List<GeoLocation> markers) {
+		return new OperationResult<List<GeoLocation>>(false, 200, "OK", markers);
+	}
+
+	//Keeps the tasks until the test runs them.
+	private static class RecordingExecutor implements Executor {
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		public void execute(Runnable r) {
+			tasks.add(r);
+		}
+
+		void runNext() {
+			tasks.removeFirst().run();
+		}
+
+		void runAll() {
+			while(!tasks.isEmpty()) {
+				runNext();
+			}
+		}
+	}
+
+	private static class RecordingListener implements MarkerStreamListener {
+		final List<MarkerDelta> deltas = new ArrayList<MarkerDelta>();
+
+		public void markersChanged(MarkerDelta delta) {
+			deltas.add(delta);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.List;
+
+import nu.placebo.whatsup.datahandling.MarkerTile;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the tiles covering a viewport hold each point of it exactly
+ * once, and that a viewport moved a little is covered by the same tiles.
+ */
+public class MarkerTileTest extends AndroidTestCase {
+
+	public MarkerTileTest() {
+		super();
+	}
+
+	public void testZoomFitsSpan() {
+		assertEquals(0, MarkerTile.zoomFor(180000000, 360000000));
+		assertEquals(1, MarkerTile.zoomFor(90000000, 180000000));
+		int zoom = MarkerTile.zoomFor(10000, 20000);
+		MarkerTile tile = new MarkerTile(zoom, 0, 0);
+		assertTrue(tile.getMaxLat() - tile.getMinLat() - 1 >= 10000);
+		assertTrue(tile.getMaxLong() - tile.getMinLong() - 1 >= 20000);
+		assertTrue(tile.getMaxLat() - tile.getMinLat() - 1 < 2 * 10000);
+	}
+
+	public void testTileFoundByItsBounds() {
+		for(MarkerTile t : MarkerTile.cover(57712345, 11998765, 57698765, 11965432)) {
+			assertEquals(t, MarkerTile.withBounds(t.getMaxLat(), t.getMaxLong(),
+					t.getMinLat(), t.getMinLong()));
+		}
+		assertEquals(new MarkerTile(0, 0, 0), MarkerTile.withBounds(90000000, 180000000,
+				-90000001, -180000001));
+		assertNull(MarkerTile.withBounds(57712345, 11998765, 57698765, 11965432));
+	}
+
+	public void testAtMostThreeTilesPerSide() {
+		int[][] viewports = {
+				{57710000, 11990000, 57700000, 11970000},
+				{57712345, 11998765, 57698765, 11965432},
+				{1000, 1000, -1000, -1000},
+				{90000000, 180000000, -90000000, -180000000}};
+		for(int[] v : viewports) {
+			List<MarkerTile> tiles = MarkerTile.cover(v[0], v[1], v[2], v[3]);
+			assertFalse(tiles.isEmpty());
+			assertTrue(tiles.size() <= 9);
+		}
+	}
+
+	public void testEachPointInExactlyOneTile() {
+		int maxLat = 57712345;
+		int maxLong = 11998765;
+		int minLat = 57698765;
+		int minLong = 11965432;
+		List<MarkerTile> tiles = MarkerTile.cover(maxLat, maxLong, minLat, minLong);
+		int step = 997;
+		for(int lat = minLat + 1; lat < maxLat; lat += step) {
+			for(int lon = minLong + 1; lon < maxLong; lon += step) {
+				assertEquals(1, countOwners(tiles, lat, lon));
+			}
+		}
+		//The edges between the tiles, too.
+		for(MarkerTile t : tiles) {
+			int lat = t.getMinLat() + 1;
+			int lon = t.getMinLong() + 1;
+			if(lat > minLat && lon > minLong) {
+				assertEquals(1, countOwners(tiles, lat, lon));
+			}
+		}
+	}
+
+	public void testSameTilesForNearbyViewports() {
+		List<MarkerTile> a = MarkerTile.cover(57710000, 11990000, 57700000, 11970000);
+		List<MarkerTile> b = MarkerTile.cover(57710020, 11990050, 57700020, 11970050);
+		assertEquals(a, b);
+	}
+
+	private static int countOwners(List<MarkerTile> tiles, int lat, int lon) {
+		int owners = 0;
+		for(MarkerTile t : tiles) {
+			if(lat > t.getMinLat() && lat < t.getMaxLat() && lon > t.getMinLong() && lon < t.getMaxLong()) {
+				owners++;
+			}
+		}
+		return owners;
+	}
+}
@@ -0,0 +1,99 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.RegionPack;
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Imports region packs into the database of the app through the
+ * DataProvider, and logs how long a pack of 50000 annotations takes. The
+ * annotations are put far out at sea, with nids the server does not hand
+ * out, so they do not mix with real data.
+ */
+public class RegionImportTest extends AndroidTestCase {
+
+	private static final int BASE_NID = 1800000000;
+	private static final int[] AREA = {-30000000, -20000000, -31000000, -21000000};
+
+	private DataProvider provider;
+
+	public RegionImportTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = DataProvider.getDataProvider(getContext());
+	}
+
+	public void testImportOf50000Annotations() throws IOException {
+		byte[] pack = write(BASE_NID, 50000, "Body", System.currentTimeMillis());
+		long start = System.nanoTime();
+		int stored = provider.importRegionPack(new ByteArrayInputStream(pack));
+		long millis = (System.nanoTime() - start) / 1000000;
+		Log.i("RegionImportTest", "Imported " + stored + " annotations (" + pack.length / 1024
+				+ " kB) in " + millis + " ms");
+		assertEquals(50000, stored);
+
+		Annotation a = provider.getAnnotation(BASE_NID + 123).getLocalData();
+		assertEquals("Body 123", a.getBody());
+		assertEquals(1, a.getComments().size());
+	}
+
+	public void testImportReplacesCachedCopies() throws IOException {
+		int nid = BASE_NID + 60000;
+		long now = System.currentTimeMillis();
+		provider.importRegionPack(new ByteArrayInputStream(write(nid, 1, "Old", now - 1000)));
+		assertEquals("Old 0", provider.getAnnotation(nid).getLocalData().getBody());
+
+		provider.importRegionPack(new ByteArrayInputStream(write(nid, 1, "New", now)));
+		assertEquals("New 0", provider.getAnnotation(nid).getLocalData().getBody());
+	}
+
+	public void testOlderPackDoesNotReplace() throws IOException {
+		int nid = BASE_NID + 70000;
+		long now = System.currentTimeMillis();
+		provider.importRegionPack(new ByteArrayInputStream(write(nid, 1, "Newer", now)));
+		assertEquals(0, provider.importRegionPack(new ByteArrayInputStream(
+				write(nid, 1, "Older", now - 1000))));
+		assertEquals("Newer 0", provider.getAnnotation(nid).getLocalData().getBody());
+	}
+
+	public void testTruncatedPackStoresNothing() throws IOException {
+		byte[] pack = write(BASE_NID + 80000, 1000, "Zyxtruncated", System.currentTimeMillis());
+		try {
+			provider.importRegionPack(new ByteArrayInputStream(pack, 0, pack.length / 2));
+			fail("A truncated pack was imported");
+		} catch(IOException e) {
+			//Expected
+		}
+		assertTrue(provider.search("zyxtruncated", 10).isEmpty());
+	}
+
+	private byte[] write(int firstNid, int count, String body, long fetchDate) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RegionPack.Writer writer = new RegionPack.Writer(out, AREA, fetchDate, count);
+		for(int i = 0; i < count; i++) {
+			int nid = firstNid + i;
+			List<Comment> comments = new ArrayList<Comment>();
+			comments.add(new Comment("Author", "Comment " + i, null, new Date(fetchDate)));
+			writer.write(new Annotation(new GeoLocation(nid, AREA[2] + nid % 1000 * 1000,
+					AREA[3] + nid / 1000 % 1000 * 1000, "Title " + i),
+					body + " " + i, "Author", comments));
+		}
+		writer.finish();
+		return out.toByteArray();
+	}
+}
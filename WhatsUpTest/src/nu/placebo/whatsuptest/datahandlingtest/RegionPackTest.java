@@ -0,0 +1,123 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import nu.placebo.whatsup.datahandling.RegionPack;
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Writes and reads region packs, and logs how large and how fast a pack of
+ * 50000 annotations is.
+ */
+public class RegionPackTest extends AndroidTestCase {
+
+	private static final int[] AREA = {58000000, 12000000, 57000000, 11000000};
+
+	public RegionPackTest() {
+		super();
+	}
+
+	public void testRoundTrip() throws IOException {
+		List<Comment> comments = new ArrayList<Comment>();
+		comments.add(new Comment("Author", "Comment \u00e5\u00e4\u00f6", "Title", new Date(1000)));
+		comments.add(new Comment(null, "No author", null, new Date(2000)));
+		Annotation a = new Annotation(new GeoLocation(7, 57500000, 11500000, "Title"),
+				"Body", "Author", comments);
+		Annotation b = new Annotation(new GeoLocation(8, 57600000, 11600000, "Other"),
+				null, "Author", new ArrayList<Comment>());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RegionPack.Writer writer = new RegionPack.Writer(out, AREA, 12345, 2);
+		writer.write(a);
+		writer.write(b);
+		writer.finish();
+
+		RegionPack.Reader reader = new RegionPack.Reader(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(Arrays.equals(AREA, reader.getArea()));
+		assertEquals(12345, reader.getFetchDate());
+		assertEquals(2, reader.getCount());
+
+		Annotation readA = reader.next();
+		assertEquals(a.getGeoLocation(), readA.getGeoLocation());
+		assertEquals("Body", readA.getBody());
+		assertEquals(2, readA.getComments().size());
+		assertEquals("Comment \u00e5\u00e4\u00f6", readA.getComments().get(0).getCommentText());
+		assertNull(readA.getComments().get(1).getAuthor());
+		assertEquals(2000, readA.getComments().get(1).getAddedDate().getTime());
+
+		Annotation readB = reader.next();
+		assertNull(readB.getBody());
+		assertTrue(readB.getComments().isEmpty());
+		assertNull(reader.next());
+	}
+
+	public void testTruncatedPackIsRejected() throws IOException {
+		byte[] pack = write(100);
+		RegionPack.Reader reader = new RegionPack.Reader(
+				new ByteArrayInputStream(pack, 0, pack.length / 2));
+		try {
+			while(reader.next() != null) {
+			}
+			fail("A truncated pack was read to the end");
+		} catch(IOException e) {
+			//Expected
+		}
+	}
+
+	public void testNotAPack() {
+		try {
+			new RegionPack.Reader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4}));
+			fail("Garbage was taken for a pack");
+		} catch(IOException e) {
+			//Expected
+		}
+	}
+
+	/**
+	 * Not a test as such. Logs the size of a pack of 50000 annotations and the
+	 * time it takes to write and read it.
+	 */
+	public void testLargePack() throws IOException {
+		long start = System.nanoTime();
+		byte[] pack = write(50000);
+		long writeTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		RegionPack.Reader reader = new RegionPack.Reader(new ByteArrayInputStream(pack));
+		int read = 0;
+		while(reader.next() != null) {
+			read++;
+		}
+		long readTime = System.nanoTime() - start;
+
+		assertEquals(50000, read);
+		Log.i("RegionPackTest", "50000 annotations: " + pack.length / 1024 + " kB, written in "
+				+ writeTime / 1000000 + " ms, read in " + readTime / 1000000 + " ms");
+	}
+
+	private byte[] write(int count) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RegionPack.Writer writer = new RegionPack.Writer(out, AREA, System.currentTimeMillis(), count);
+		for(int i = 0; i < count; i++) {
+			List<Comment> comments = new ArrayList<Comment>();
+			for(int j = 0; j < i % 4; j++) {
+				comments.add(new Comment("Author " + j, "Comment " + j + " on " + i,
+						"Title " + j, new Date(1000L * i + j)));
+			}
+			writer.write(new Annotation(new GeoLocation(i, 57000000 + i * 20, 11000000 + i * 20,
+					"Annotation " + i), "The body of annotation " + i, "Author " + i % 100, comments));
+		}
+		writer.finish();
+		return out.toByteArray();
+	}
+}
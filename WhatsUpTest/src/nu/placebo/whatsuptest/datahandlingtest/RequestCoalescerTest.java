@@ -0,0 +1,124 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.placebo.whatsup.datahandling.RequestCoalescer;
+import nu.placebo.whatsup.network.AbstractNetworkOperation;
+import nu.placebo.whatsup.network.NetworkOperation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+/**
+ * Makes two requests with the same key while the first is held in flight,
+ * and checks that one network call serves both, that the result is stored
+ * once, and that the saved call is counted.
+ */
+public class RequestCoalescerTest extends AndroidTestCase {
+
+	private RequestCoalescer coalescer;
+	private CountDownLatch release;
+	private AtomicInteger created;
+
+	public RequestCoalescerTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		coalescer = new RequestCoalescer();
+		release = new CountDownLatch(1);
+		created = new AtomicInteger();
+	}
+
+	public void testIdenticalRequestsShareOneCall() throws Exception {
+		final CountDownLatch called = new CountDownLatch(3);
+		final List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+		final boolean[] started = new boolean[2];
+
+		onMainThread(new Runnable() {
+			public void run() {
+				started[0] = coalescer.request("key", factory(), recorder(first, called),
+						recorder(stored, called));
+				started[1] = coalescer.request("key", factory(), recorder(second, called),
+						recorder(stored, called));
+			}
+		});
+
+		assertTrue(started[0]);
+		assertFalse("The second request started a call", started[1]);
+		assertEquals(1, created.get());
+		assertEquals(1, coalescer.size());
+		assertEquals(1, coalescer.getStartedCalls());
+		assertEquals(1, coalescer.getSavedCalls());
+
+		release.countDown();
+		assertTrue("Listeners not called", called.await(10, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList("result 1"), first);
+		assertEquals(Collections.singletonList("result 1"), second);
+		assertEquals("The result was stored more than once",
+				Collections.singletonList("result 1"), stored);
+		assertEquals(0, coalescer.size());
+	}
+
+	//Creates operations that hold their call until released.
+	private RequestCoalescer.OperationFactory<String> factory() {
+		return new RequestCoalescer.OperationFactory<String>() {
+			public NetworkOperation<String> create() {
+				return new HeldOperation(created.incrementAndGet());
+			}
+		};
+	}
+
+	private static NetworkOperationListener<String> recorder(final List<String> results,
+			final CountDownLatch called) {
+		return new NetworkOperationListener<String>() {
+			public void operationExcecuted(OperationResult<String> result) {
+				results.add(result.getResult());
+				called.countDown();
+			}
+		};
+	}
+
+	//Requests are made on the UI thread, where the calls are started.
+	private static void onMainThread(final Runnable r) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			public void run() {
+				try {
+					r.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	private class HeldOperation extends AbstractNetworkOperation<String> {
+		private final int number;
+
+		HeldOperation(int number) {
+			this.number = number;
+		}
+
+		public OperationResult<String> execute() {
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				return new OperationResult<String>(true, 0, "Interrupted", null);
+			}
+			return new OperationResult<String>(false, 200, "OK", "result " + number);
+		}
+	}
+}
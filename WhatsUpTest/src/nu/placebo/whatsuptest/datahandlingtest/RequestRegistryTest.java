@@ -0,0 +1,102 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.placebo.whatsup.datahandling.DataReturn;
+import nu.placebo.whatsup.datahandling.RequestRegistry;
+import android.test.AndroidTestCase;
+
+/**
+ * Fires thousands of overlapping requests at the registry from several
+ * threads, completing them in random order, and checks that every completion
+ * resolves the request it belongs to.
+ */
+public class RequestRegistryTest extends AndroidTestCase {
+
+	private static final int THREADS = 8;
+	private static final int REQUESTS_PER_THREAD = 5000;
+
+	private RequestRegistry registry;
+
+	public RequestRegistryTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		registry = new RequestRegistry();
+	}
+
+	public void testCompleteResolvesTheRightRequest() {
+		DataReturn<String> a = registry.register("a");
+		DataReturn<String> b = registry.register("b");
+		DataReturn<String> c = registry.register("c");
+
+		assertSame(a, registry.complete(a.getId()));
+		assertSame(c, registry.complete(c.getId()));
+		assertSame(b, registry.get(b.getId()));
+		assertSame(b, registry.complete(b.getId()));
+		assertNull(registry.complete(b.getId()));
+		assertEquals(0, registry.size());
+	}
+
+	public void testConcurrentRequests() throws Exception {
+		final ConcurrentHashMap<Integer, DataReturn<?>> issued = new ConcurrentHashMap<Integer, DataReturn<?>>();
+		final AtomicInteger wrong = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < THREADS; t++) {
+			final Random r = new Random(t);
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					List<DataReturn<Integer>> mine = new ArrayList<DataReturn<Integer>>();
+					for(int i = 0; i < REQUESTS_PER_THREAD; i++) {
+						DataReturn<Integer> dr = registry.register(i);
+						if(issued.putIfAbsent(dr.getId(), dr) != null) {
+							wrong.incrementAndGet();
+						}
+						mine.add(dr);
+						//Complete some of the outstanding requests, in random order,
+						//while the other threads keep registering.
+						if(r.nextInt(4) == 0) {
+							Collections.shuffle(mine, r);
+							while(mine.size() > r.nextInt(8)) {
+								DataReturn<Integer> done = mine.remove(mine.size() - 1);
+								if(registry.complete(done.getId()) != done) {
+									wrong.incrementAndGet();
+								}
+							}
+						}
+					}
+					for(DataReturn<Integer> done : mine) {
+						if(registry.complete(done.getId()) != done) {
+							wrong.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, wrong.get());
+		assertEquals(THREADS * REQUESTS_PER_THREAD, issued.size());
+		assertEquals(0, registry.size());
+	}
+}
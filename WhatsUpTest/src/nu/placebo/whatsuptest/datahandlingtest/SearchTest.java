@@ -0,0 +1,111 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.RegionPack;
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Searches the local cache after storing 100000 annotations in it through a
+ * region pack, and logs how long the searches take. The annotations are put
+ * far out at sea, with nids the server does not hand out, so they do not mix
+ * with real data.
+ */
+public class SearchTest extends AndroidTestCase {
+
+	private static final int ROWS = 100000;
+	private static final int BASE_NID = 1900000000;
+	private static final int[] AREA = {-10000000, -20000000, -11000000, -21000000};
+
+	private static boolean stored;
+
+	private DataProvider provider;
+
+	public SearchTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		provider = DataProvider.getDataProvider(getContext());
+		if(!stored) {
+			store();
+			stored = true;
+		}
+	}
+
+	public void testWordsAreSplitOnAnythingButLettersAndDigits() {
+		List<GeoLocation> result = provider.search("  XYLOFJORD!!, glimt ", 10);
+		assertEquals(1, result.size());
+		assertEquals(BASE_NID + 1, result.get(0).getId());
+		assertTrue(provider.search("!?,", 10).isEmpty());
+	}
+
+	public void testWordsMatchAsPrefixes() {
+		assertEquals(3, provider.search("xylof", 10).size());
+		assertTrue(provider.search("ylofjord", 10).isEmpty());
+	}
+
+	public void testTitleRanksAboveBodyAboveComment() {
+		List<GeoLocation> result = provider.search("xylofjord", 10);
+		assertEquals(3, result.size());
+		assertEquals(BASE_NID, result.get(0).getId());
+		assertEquals(BASE_NID + 1, result.get(1).getId());
+		assertEquals(BASE_NID + 2, result.get(2).getId());
+	}
+
+	public void testSearchAmongAllRows() {
+		String[] queries = {"pier 4242", "pier", "quay 9", "lorem ipsum", "xylofjord"};
+		for(String query : queries) {
+			long start = System.nanoTime();
+			List<GeoLocation> result = provider.search(query, 20);
+			long millis = (System.nanoTime() - start) / 1000000;
+			Log.i("SearchTest", "\"" + query + "\" among " + ROWS + " rows: "
+					+ result.size() + " results in " + millis + " ms");
+			assertFalse(result.isEmpty());
+		}
+		List<GeoLocation> result = provider.search("pier 4242", 20);
+		assertEquals(BASE_NID + 4242, result.get(0).getId());
+		assertEquals(20, provider.search("pier", 20).size());
+	}
+
+	//Stores the annotations with one import, and logs how long it took.
+	private void store() throws IOException, InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RegionPack.Writer writer = new RegionPack.Writer(out, AREA, System.currentTimeMillis(), ROWS);
+		List<Comment> none = new ArrayList<Comment>();
+		List<Comment> comments = new ArrayList<Comment>();
+		comments.add(new Comment("Author", "Seen from the xylofjord ferry", null, new Date(1000)));
+		writer.write(annotation(0, "Xylofjord lookout", "A view", none));
+		writer.write(annotation(1, "Old mill", "By the xylofjord, glimt of the sea", none));
+		writer.write(annotation(2, "Boathouse", "Red walls", comments));
+		for(int i = 3; i < ROWS; i++) {
+			writer.write(annotation(i, (i % 2 == 0 ? "Pier " : "Quay ") + i,
+					"Lorem ipsum dolor sit amet " + i, none));
+		}
+		writer.finish();
+
+		long start = System.nanoTime();
+		provider.importRegionPack(new ByteArrayInputStream(out.toByteArray()));
+		provider.flush();
+		Log.i("SearchTest", "Stored " + ROWS + " annotations in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private Annotation annotation(int i, String title, String body, List<Comment> comments) {
+		int lat = AREA[2] + i % 1000 * 1000;
+		int lon = AREA[3] + i / 1000 * 1000;
+		return new Annotation(new GeoLocation(BASE_NID + i, lat, lon, title), body, "Author", comments);
+	}
+}
@@ -0,0 +1,168 @@
+package nu.placebo.whatsuptest.datahandlingtest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import nu.placebo.whatsup.datahandling.MarkerTile;
+import nu.placebo.whatsup.datahandling.ViewportPrefetcher;
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.test.AndroidTestCase;
+
+/**
+ * Pans a map in front of a ViewportPrefetcher whose network calls are only
+ * recorded, and checks what it predicts, which tiles it fetches and how it
+ * counts hits.
+ */
+public class ViewportPrefetcherTest extends AndroidTestCase {
+
+	private static final int SPAN = 100000;
+
+	private RecordingPrefetcher prefetcher;
+
+	public ViewportPrefetcherTest() {
+		super();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		prefetcher = new RecordingPrefetcher();
+	}
+
+	public void testStandingStillPrefetchesNothing() {
+		for(int t = 0; t < 1000; t += 100) {
+			prefetcher.onViewportChanged(57700000, 11900000, SPAN, SPAN, t);
+		}
+		assertNull(prefetcher.getPredictedArea());
+		assertEquals(0, prefetcher.started.size());
+	}
+
+	public void testPanningEastPrefetchesAhead() {
+		//Half a span east per second.
+		prefetcher.onViewportChanged(57700000, 11900000, SPAN, SPAN, 0);
+		prefetcher.onViewportChanged(57700000, 11925000, SPAN, SPAN, 500);
+
+		assertEquals(1, prefetcher.getPrefetches());
+		int[] area = prefetcher.getPredictedArea();
+		assertEquals(57700000 + SPAN / 2, area[0]);
+		assertEquals(11975000 + SPAN / 2, area[1]);
+		assertEquals(57700000 - SPAN / 2, area[2]);
+		assertEquals(11975000 - SPAN / 2, area[3]);
+		assertEquals(MarkerTile.cover(area[0], area[1], area[2], area[3]), prefetcher.tiles);
+	}
+
+	public void testFreshTilesAreNotPrefetched() {
+		prefetcher.onViewportChanged(57700000, 11900000, SPAN, SPAN, 0);
+		int[] area = {57700000 + SPAN / 2, 11975000 + SPAN / 2,
+				57700000 - SPAN / 2, 11975000 - SPAN / 2};
+		List<MarkerTile> cover = MarkerTile.cover(area[0], area[1], area[2], area[3]);
+		prefetcher.fresh.addAll(cover.subList(1, cover.size()));
+		prefetcher.onViewportChanged(57700000, 11925000, SPAN, SPAN, 500);
+		assertEquals(cover.subList(0, 1), prefetcher.tiles);
+
+		prefetcher.finishAll();
+		prefetcher.fresh.add(cover.get(0));
+		prefetcher.onViewportChanged(57700000, 11925000, SPAN, SPAN, 500);
+		assertEquals("Nothing left to prefetch", 1, prefetcher.getPrefetches());
+	}
+
+	public void testZoomingOutPrefetchesWiderArea() {
+		prefetcher.onViewportChanged(57700000, 11900000, SPAN, SPAN, 0);
+		prefetcher.onViewportChanged(57700000, 11900000, SPAN * 2, SPAN * 2, 1000);
+
+		int[] area = prefetcher.getPredictedArea();
+		assertEquals(SPAN * 4, area[0] - area[2]);
+		assertEquals(MarkerTile.cover(area[0], area[1], area[2], area[3]), prefetcher.tiles);
+	}
+
+	public void testBudget() {
+		prefetcher.setMaxInFlight(1);
+		prefetcher.setMaxPerMinute(2);
+		pan(0);
+		pan(10000);
+		assertEquals("The first prefetch is still in flight", 1, prefetcher.getPrefetches());
+
+		prefetcher.finishAll();
+		pan(20000);
+		prefetcher.finishAll();
+		pan(30000);
+		assertEquals("Only two prefetches per minute", 2, prefetcher.getPrefetches());
+
+		pan(70000);
+		assertEquals(3, prefetcher.getPrefetches());
+	}
+
+	public void testHitRate() {
+		pan(0);
+		int[] area = prefetcher.getPredictedArea();
+		prefetcher.finishAll();
+		prefetcher.viewportShown(area[0], area[1], area[2], area[3]);
+		prefetcher.viewportShown(area[0], area[1], area[2], area[3]);
+		assertEquals(1, prefetcher.getHits());
+
+		//An area none of whose tiles were prefetched is not a hit.
+		pan(70000);
+		area = prefetcher.getPredictedArea();
+		prefetcher.finishAll();
+		prefetcher.viewportShown(area[0] + SPAN * 4, area[1], area[2] + SPAN * 4, area[3]);
+
+		assertEquals(1, prefetcher.getHits());
+		assertEquals(0.5, prefetcher.getHitRate(), 0.0001);
+		prefetcher.viewportShown(area[0], area[1], area[2], area[3]);
+		assertEquals(2, prefetcher.getHits());
+		assertEquals(1.0, prefetcher.getHitRate(), 0.0001);
+	}
+
+	//Pans east for half a second, starting at the given time.
+	private void pan(long time) {
+		prefetcher.onViewportChanged(57700000, 11900000, SPAN, SPAN, time);
+		prefetcher.onViewportChanged(57700000, 11950000, SPAN, SPAN, time + 500);
+	}
+
+	private static class RecordingPrefetcher extends ViewportPrefetcher {
+		final List<NetworkOperationListener<List<GeoLocation>>> started =
+				new ArrayList<NetworkOperationListener<List<GeoLocation>>>();
+		final List<MarkerTile> tiles = new ArrayList<MarkerTile>();
+		final Set<MarkerTile> fresh = new HashSet<MarkerTile>();
+
+		//Finds out whether to prefetch at once, so the test sees it.
+		RecordingPrefetcher() {
+			super(new Executor() {
+				public void execute(Runnable r) {
+					r.run();
+				}
+			});
+		}
+
+		@Override
+		protected void startPrefetch(MarkerTile tile,
+				NetworkOperationListener<List<GeoLocation>> done) {
+			tiles.add(tile);
+			started.add(done);
+		}
+
+		@Override
+		protected boolean isFresh(MarkerTile tile) {
+			return fresh.contains(tile);
+		}
+
+		@Override
+		protected boolean isBusy() {
+			return false;
+		}
+
+		//Finishes the tiles started so far.
+		void finishAll() {
+			for(NetworkOperationListener<List<GeoLocation>> done : started) {
+				done.operationExcecuted(new OperationResult<List<GeoLocation>>(
+						false, 200, "OK", new ArrayList<GeoLocation>()));
+			}
+			started.clear();
+		}
+	}
+}
@@ -73,6 +73,13 @@ public class NetworkTest extends AndroidTestCase {
 		a.notifyListeners(result);
 	}
 
+	public void testConnectionsReused() {
+		new AnnotationRetrieve(1337).execute();
+		new AnnotationRetrieve(0).execute();
+		new AnnotationRetrieve(1337).execute();
+		assertTrue("Kept-alive connection not reused", NetworkCalls.getReuseRate() > 0);
+	}
+
 	public void testSession() {
 		Login l = new Login("test", "WhatsUp!");
 		l.addOperationListener(new NetworkOperationListener<SessionInfo>() {
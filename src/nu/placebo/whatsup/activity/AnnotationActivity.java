@@ -1,11 +1,10 @@
 package nu.placebo.whatsup.activity;
 
 import nu.placebo.whatsup.R;
+import nu.placebo.whatsup.datahandling.DataChangeListener;
+import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.DataReturn;
 import nu.placebo.whatsup.model.Annotation;
-import nu.placebo.whatsup.network.AnnotationRetrieve;
-import nu.placebo.whatsup.network.NetworkOperationListener;
-import nu.placebo.whatsup.network.NetworkTask;
-import nu.placebo.whatsup.network.OperationResult;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -24,12 +23,13 @@ import android.widget.TextView;
  */
 
 public class AnnotationActivity extends Activity implements
-		OnClickListener, NetworkOperationListener<Annotation> {
+		OnClickListener, DataChangeListener<Annotation> {
 
 	private TextView title;
 	private TextView body;
 	private TextView author;
 	private Annotation annotation;
+	private DataReturn<Annotation> pending;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -39,9 +39,12 @@ public class AnnotationActivity extends Activity implements
 		this.body = (TextView) this.findViewById(R.id.body);
 		this.author = (TextView) this.findViewById(R.id.author);
 		Bundle bundle = getIntent().getExtras();
-		AnnotationRetrieve ar = new AnnotationRetrieve(bundle.getInt("nid"));
-		ar.addOperationListener(this);
-		new NetworkTask<Annotation>().execute(ar);
+		//Show the stored copy at once; the server copy replaces it if it differs.
+		pending = DataProvider.getDataProvider(this).getAnnotation(bundle.getInt("nid"));
+		if (pending.getLocalData() != null) {
+			setAnnotation(pending.getLocalData());
+		}
+		pending.addDataChangeListener(this, new UiThreadExecutor());
 	//	Button commentButton = (Button) this.findViewById(R.id.comment);
 	//	commentButton.setOnClickListener(this);
 	}
@@ -57,10 +60,14 @@ public class AnnotationActivity extends Activity implements
 		this.author.setText("by " + annotation.getAuthor());
 	}
 
-	public void operationExcecuted(final OperationResult<Annotation> result) {
-		if (!result.hasErrors()) {
-			setAnnotation(result.getResult());
-		}
+	public void dataChanged(Annotation newData) {
+		setAnnotation(newData);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		pending.cancel();
 	}
 
 	@Override
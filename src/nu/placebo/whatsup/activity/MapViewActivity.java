@@ -1,21 +1,24 @@
 package nu.placebo.whatsup.activity;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import nu.placebo.whatsup.R;
 import nu.placebo.whatsup.constants.Constants;
 import nu.placebo.whatsup.datahandling.DataProvider;
+import nu.placebo.whatsup.datahandling.MarkerDelta;
+import nu.placebo.whatsup.datahandling.MarkerStream;
+import nu.placebo.whatsup.datahandling.MarkerStreamListener;
+import nu.placebo.whatsup.datahandling.ViewportPrefetcher;
 import nu.placebo.whatsup.model.ExtendedOverlayItem;
 import nu.placebo.whatsup.model.GeoLocation;
 import nu.placebo.whatsup.model.ReferencePoint;
-import nu.placebo.whatsup.network.GeoLocationsRetrieve;
 import nu.placebo.whatsup.network.NetworkCalls;
-import nu.placebo.whatsup.network.NetworkOperationListener;
-import nu.placebo.whatsup.network.NetworkTask;
-import nu.placebo.whatsup.network.OperationResult;
 import nu.placebo.whatsup.util.GeoPointUtil;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Canvas;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.view.Menu;
@@ -37,7 +40,7 @@ import com.google.android.maps.OverlayItem;
  * @author Albin Bramstång
  */
 public class MapViewActivity extends MapActivity implements OnClickListener,
-		NetworkOperationListener<List<GeoLocation>> {
+		MarkerStreamListener {
 
 	private MapView mapView;
 	private Marker marker;
@@ -45,6 +48,8 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 	private List<Overlay> overlays;
 	private LocationManager locationManager;
 	private DataProvider dataProvider;
+	private MarkerStream stream;
+	private UiThreadExecutor uiThread;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -56,11 +61,13 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 		mapView.setBuiltInZoomControls(true);
 		overlays = mapView.getOverlays();
 		dataProvider = DataProvider.getDataProvider(this);
+		uiThread = new UiThreadExecutor();
 		marker = new Marker(this.getResources().getDrawable(R.drawable.pin),
 				mapView, this);
 		refPointMarker = new Marker(this.getResources().getDrawable(
 				R.drawable.home), mapView, this);
 		addReferenceOverlay();
+		overlays.add(new ViewportTracker(dataProvider.getViewportPrefetcher()));
 		setupToolbar();
 		locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 	}
@@ -108,7 +115,9 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 			marker.addOverlay(new ExtendedOverlayItem(h));
 		}
 		marker.callPopulate();
-		overlays.add(marker);
+		if (!overlays.contains(marker)) {
+			overlays.add(marker);
+		}
 		mapView.invalidate();
 	}
 
@@ -134,19 +143,21 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 	}
 
 	/**
-	 * Retrieves information about the current location on the map, and sends it
-	 * to the server.
+	 * Shows the stored markers of the area on the map, a page at a time, and
+	 * asks the server for them unless they are fresh. The area is fetched in
+	 * tiles, and the markers that changed are redrawn as each tile arrives.
 	 */
 	public void refresh() {
+		if (stream != null) {
+			stream.cancel();
+		}
 		marker.clear();
 		GeoPoint[] p = GeoPointUtil.getBottomLeftToTopRightPoints(
 				mapView.getMapCenter(), mapView.getLatitudeSpan(),
 				mapView.getLongitudeSpan());
-		double[] d = GeoPointUtil.convertAreaToDoubles(p[0], p[1]);
-		GeoLocationsRetrieve gr = new GeoLocationsRetrieve(d[0], d[1], d[2],
-				d[3]);
-		gr.addOperationListener(this);
-		new NetworkTask<List<GeoLocation>>().execute(gr);
+		stream = dataProvider.streamAnnotationMarkers(p[0].getLatitudeE6(),
+				p[0].getLongitudeE6(), p[1].getLatitudeE6(),
+				p[1].getLongitudeE6(), this, uiThread);
 	}
 
 	@Override
@@ -169,10 +180,26 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 				DataProvider.getDataProvider(getApplicationContext()));
 	}
 
-	public void operationExcecuted(
-			final OperationResult<List<GeoLocation>> result) {
-		if (!result.hasErrors()) {
-			addMarkers(result.getResult());
+	public void markersChanged(MarkerDelta delta) {
+		Set<Integer> stale = new HashSet<Integer>();
+		for (GeoLocation g : delta.getRemoved()) {
+			stale.add(g.getId());
+		}
+		for (GeoLocation g : delta.getChanged()) {
+			stale.add(g.getId());
+		}
+		marker.removeOverlays(stale);
+		for (GeoLocation g : delta.getChanged()) {
+			marker.addOverlay(new ExtendedOverlayItem(g));
+		}
+		addMarkers(delta.getAdded());
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (stream != null) {
+			stream.cancel();
 		}
 	}
 
@@ -191,4 +218,38 @@ public class MapViewActivity extends MapActivity implements OnClickListener,
 	public boolean onPrepareOptionsMenu(Menu menu) {
 		return MenuHelper.onPrepareOptionsMenu(menu, this);
 	}
+
+	/**
+	 * An invisible overlay that reports the center and span of the map to the
+	 * viewport prefetcher whenever they have changed since the last frame. The
+	 * prefetcher only records them here, and looks up the database on a
+	 * thread of its own, so drawing is not held up.
+	 */
+	private static class ViewportTracker extends Overlay {
+		private final ViewportPrefetcher prefetcher;
+		private GeoPoint center;
+		private int latSpan;
+		private int longSpan;
+
+		ViewportTracker(ViewportPrefetcher prefetcher) {
+			this.prefetcher = prefetcher;
+		}
+
+		@Override
+		public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+			if (shadow) {
+				return;
+			}
+			GeoPoint c = mapView.getMapCenter();
+			int lat = mapView.getLatitudeSpan();
+			int lng = mapView.getLongitudeSpan();
+			if (!c.equals(center) || lat != latSpan || lng != longSpan) {
+				center = c;
+				latSpan = lat;
+				longSpan = lng;
+				prefetcher.onViewportChanged(c.getLatitudeE6(), c.getLongitudeE6(),
+						lat, lng, System.currentTimeMillis());
+			}
+		}
+	}
 }
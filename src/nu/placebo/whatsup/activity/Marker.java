@@ -1,6 +1,8 @@
 package nu.placebo.whatsup.activity;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 
 import nu.placebo.whatsup.balloon.BalloonItemizedOverlay;
 import nu.placebo.whatsup.model.ExtendedOverlayItem;
@@ -42,6 +44,22 @@ public class Marker extends BalloonItemizedOverlay<OverlayItem> {
 	    overlays.add(overlay);
 	}
 	
+	/**
+	 * Removes the items of the annotations with the given ids, in one pass.
+	 * Call callPopulate afterwards.
+	 * 
+	 * @param ids the ids of the annotations, preferably in a set.
+	 */
+	public void removeOverlays(Collection<Integer> ids) {
+		for (Iterator<OverlayItem> it = overlays.iterator(); it.hasNext();) {
+			OverlayItem item = it.next();
+			if (item instanceof ExtendedOverlayItem
+					&& ids.contains(((ExtendedOverlayItem) item).getId())) {
+				it.remove();
+			}
+		}
+	}
+	
 	public void callPopulate() {
 		setLastFocusedIndex(-1);
 		populate();
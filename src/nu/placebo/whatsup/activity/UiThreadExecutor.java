@@ -0,0 +1,27 @@
+package nu.placebo.whatsup.activity;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+
+/**
+ * Runs tasks on the UI thread, by posting them to a Handler created on it.
+ * Posting rather than running at once lets the views be drawn between tasks,
+ * e.g. between the parts of a MarkerStream. Used to call DataReturn and
+ * MarkerStream listeners that update views.
+ */
+class UiThreadExecutor implements Executor {
+
+	private final Handler handler;
+
+	/**
+	 * Must be created on the UI thread.
+	 */
+	public UiThreadExecutor() {
+		this.handler = new Handler();
+	}
+
+	public void execute(Runnable r) {
+		handler.post(r);
+	}
+}
@@ -2,6 +2,7 @@ package nu.placebo.whatsup.constants;
 
 public class Constants {
 	public static final int ALLOWED_CONCURRENT_CALLS = 2;
+	public static final int MARKER_PAGE_SIZE = 50;
 	public static final String API_URL = "http://whatsup.placebo.nu/api/";
 	public static final int ACTIVITY_FINISHED_OK = 200;
 	public static final int ACTIVITY_INTERRUPTED = 417;
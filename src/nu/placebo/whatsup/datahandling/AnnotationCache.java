@@ -0,0 +1,130 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nu.placebo.whatsup.model.Annotation;
+
+/**
+ * A bounded, in-memory cache of annotations in front of the database. When it
+ * is full, the least recently used annotation is evicted. Each annotation is
+ * kept with the time it was fetched from the server.
+ *
+ * The counters are there so the size can be tuned; only the DataProvider
+ * changes the content.
+ */
+public class AnnotationCache {
+
+	private final Map<Integer, Entry> annotations;
+	private int hits;
+	private int misses;
+	private int evictions;
+
+	AnnotationCache(final int maxEntries) {
+		annotations = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+				if(size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached annotation with the given id, counting a hit or a miss.
+	 *
+	 * @param nid the id of the annotation.
+	 * @return the annotation, or null if it is not cached.
+	 */
+	synchronized Annotation get(int nid) {
+		Entry e = annotations.get(nid);
+		if(e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.annotation;
+	}
+
+	/**
+	 * Returns when the cached annotation with the given id was fetched. This is
+	 * not counted as a lookup.
+	 *
+	 * @param nid the id of the annotation.
+	 * @return the fetch date in milliseconds, or 0 if the annotation is not cached
+	 * or the date is not known.
+	 */
+	synchronized long getFetchDate(int nid) {
+		Entry e = annotations.get(nid);
+		return (e == null ? 0 : e.fetchDate);
+	}
+
+	/**
+	 * Caches the annotation, replacing any older copy with the same id.
+	 *
+	 * @param a the annotation.
+	 * @param fetchDate when the annotation was fetched, or 0 if that is not known.
+	 */
+	synchronized void put(Annotation a, long fetchDate) {
+		annotations.put(a.getId(), new Entry(a, fetchDate));
+	}
+
+	/**
+	 * Drops the annotation with the given id, so the next lookup goes to the
+	 * database.
+	 *
+	 * @param nid the id of the annotation.
+	 */
+	synchronized void remove(int nid) {
+		annotations.remove(nid);
+	}
+
+	/**
+	 * @return the number of cached annotations.
+	 */
+	public synchronized int size() {
+		return annotations.size();
+	}
+
+	/**
+	 * @return the number of lookups that found the annotation in the cache.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to go to the database.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of annotations evicted to make room for others.
+	 */
+	public synchronized int getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "AnnotationCache[size=" + annotations.size() + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	private static class Entry {
+		final Annotation annotation;
+		final long fetchDate;
+
+		Entry(Annotation annotation, long fetchDate) {
+			this.annotation = annotation;
+			this.fetchDate = fetchDate;
+		}
+	}
+}
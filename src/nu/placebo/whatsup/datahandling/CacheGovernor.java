@@ -0,0 +1,266 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nu.placebo.whatsup.model.GeoLocation;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Keeps the database within a row and a byte quota. When either is exceeded,
+ * the least recently used markers are evicted, together with their annotations
+ * and comments, until the cache is back under the low-water mark. When enough
+ * of the file is free pages, it is compacted.
+ *
+ * All checks, evictions and compactions run on the database writer thread. The
+ * DataProvider tells the governor what is used and stored; access dates are
+ * collected in memory and written in batches.
+ */
+public class CacheGovernor {
+
+	private static final String LOG_TAG = "WhatsUp";
+
+	/**
+	 * The default maximum number of cached markers.
+	 */
+	public static final int DEFAULT_MAX_ROWS = 20000;
+
+	/**
+	 * The default maximum size of the cached data, in bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+	//Eviction goes this far below the quota, so it does not run on every store.
+	private static final float LOW_WATER = 0.9f;
+
+	//The number of stored rows after which the quotas are checked again.
+	private static final int CHECK_INTERVAL = 500;
+
+	//The number of access dates collected before they are written.
+	private static final int ACCESS_BATCH = 64;
+
+	//The share of free pages above which the file is compacted.
+	private static final float COMPACTION_THRESHOLD = 0.25f;
+
+	private static final String ACCESS_KEY = "access dates";
+	private static final String CHECK_KEY = "cache check";
+	private static final String COMPACTION_KEY = "compaction";
+
+	private final DatabaseWriter writer;
+	private final AnnotationCache annotationCache;
+	private final TileCache tileCache;
+	private Map<Integer, Long> accessDates = new HashMap<Integer, Long>();
+	private int maxRows = DEFAULT_MAX_ROWS;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private int rowsSinceCheck;
+	private int evictedRows;
+	private int compactions;
+
+	CacheGovernor(DatabaseWriter writer, AnnotationCache annotationCache, TileCache tileCache) {
+		this.writer = writer;
+		this.annotationCache = annotationCache;
+		this.tileCache = tileCache;
+	}
+
+	/**
+	 * Sets the quotas and checks them at once.
+	 *
+	 * @param maxRows the maximum number of cached markers.
+	 * @param maxBytes the maximum size of the cached data, in bytes.
+	 */
+	public void setQuota(int maxRows, long maxBytes) {
+		if(maxRows <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("A quota must be positive");
+		}
+		synchronized(this) {
+			this.maxRows = maxRows;
+			this.maxBytes = maxBytes;
+		}
+		scheduleCheck();
+	}
+
+	/**
+	 * @return the maximum number of cached markers.
+	 */
+	public synchronized int getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * @return the maximum size of the cached data, in bytes.
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the number of markers evicted since the application started.
+	 */
+	public synchronized int getEvictedRows() {
+		return evictedRows;
+	}
+
+	/**
+	 * @return the number of times the database file has been compacted.
+	 */
+	public synchronized int getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 * Records that the marker with the given nid was used.
+	 *
+	 * @param nid the id of the marker.
+	 * @param now the current time.
+	 */
+	void touch(int nid, long now) {
+		boolean full;
+		synchronized(this) {
+			accessDates.put(nid, now);
+			full = accessDates.size() >= ACCESS_BATCH;
+		}
+		if(full) {
+			scheduleAccessDates();
+		}
+	}
+
+	/**
+	 * Records that the given markers were used.
+	 *
+	 * @param used the markers.
+	 * @param now the current time.
+	 */
+	void touch(List<GeoLocation> used, long now) {
+		boolean full;
+		synchronized(this) {
+			for(GeoLocation gl : used) {
+				accessDates.put(gl.getId(), now);
+			}
+			full = accessDates.size() >= ACCESS_BATCH;
+		}
+		if(full) {
+			scheduleAccessDates();
+		}
+	}
+
+	/**
+	 * Records that rows were committed. Every CHECK_INTERVAL rows the quotas
+	 * are checked.
+	 *
+	 * @param rows the number of rows.
+	 */
+	void rowsStored(int rows) {
+		boolean check;
+		synchronized(this) {
+			rowsSinceCheck += rows;
+			check = rowsSinceCheck >= CHECK_INTERVAL;
+		}
+		if(check) {
+			scheduleCheck();
+		}
+	}
+
+	/**
+	 * Queues a check of the quotas on the writer thread.
+	 */
+	void scheduleCheck() {
+		synchronized(this) {
+			rowsSinceCheck = 0;
+		}
+		writer.enqueue(CHECK_KEY, new DatabaseWriter.Write() {
+			public boolean write() {
+				enforce();
+				return true;
+			}
+		});
+	}
+
+	private void scheduleAccessDates() {
+		writer.enqueue(ACCESS_KEY, new DatabaseWriter.Write() {
+			public boolean write() {
+				DatabaseConnectionLayer.storeAccessDates(takeAccessDates());
+				return true;
+			}
+		});
+	}
+
+	private synchronized Map<Integer, Long> takeAccessDates() {
+		Map<Integer, Long> taken = accessDates;
+		accessDates = new HashMap<Integer, Long>();
+		return taken;
+	}
+
+	//Runs inside a transaction of the writer. The access dates are written
+	//first, so the eviction sees the latest ones.
+	private void enforce() {
+		DatabaseConnectionLayer.storeAccessDates(takeAccessDates());
+		int rowQuota;
+		long byteQuota;
+		synchronized(this) {
+			rowQuota = maxRows;
+			byteQuota = maxBytes;
+		}
+
+		long rows = DatabaseConnectionLayer.countGeoLocations();
+		long bytes = DatabaseConnectionLayer.getUsedBytes();
+		long excess = 0;
+		if(rows > rowQuota) {
+			excess = rows - (long) (rowQuota * LOW_WATER);
+		}
+		if(bytes > byteQuota) {
+			excess = Math.max(excess, rows - (long) (rows * LOW_WATER * byteQuota / bytes));
+		}
+		if(excess > 0) {
+			long start = System.nanoTime();
+			final List<Integer> evicted = DatabaseConnectionLayer.evictLeastRecentlyAccessed((int) excess);
+			DatabaseWriter.afterCommit(new Runnable() {
+				public void run() {
+					for(int nid : evicted) {
+						annotationCache.remove(nid);
+					}
+					//The stored regions are dropped with the markers, so the
+					//tiles remembered as fresh may not be.
+					tileCache.clear();
+					synchronized(CacheGovernor.this) {
+						evictedRows += evicted.size();
+					}
+				}
+			});
+			Log.i(LOG_TAG, "Evicted " + evicted.size() + " of " + rows + " markers ("
+					+ bytes / 1024 + " kB) in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+
+		if(DatabaseConnectionLayer.getFreeRatio() > COMPACTION_THRESHOLD) {
+			writer.enqueueMaintenance(COMPACTION_KEY, new Runnable() {
+				public void run() {
+					compact();
+				}
+			});
+		}
+	}
+
+	//Runs on the writer thread outside of any transaction. It needs every
+	//other connection to be idle, so if a query is running it is left for
+	//the next check.
+	private void compact() {
+		long start = System.nanoTime();
+		try {
+			DatabaseConnectionLayer.vacuum();
+		} catch(SQLException e) {
+			Log.w(LOG_TAG, "Could not compact the database", e);
+			return;
+		}
+		synchronized(this) {
+			compactions++;
+		}
+		Log.i(LOG_TAG, "Compacted the database in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CacheGovernor[maxRows=" + maxRows + ", maxBytes=" + maxBytes
+				+ ", evictedRows=" + evictedRows + ", compactions=" + compactions + "]";
+	}
+}
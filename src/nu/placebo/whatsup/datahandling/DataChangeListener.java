@@ -0,0 +1,18 @@
+package nu.placebo.whatsup.datahandling;
+
+/**
+ * Listens to a DataReturn for server data that differs from the local data.
+ * Unlike a DataReturnListener, it is not called when the server agrees with
+ * the local data, or when the request fails, times out or is cancelled.
+ *
+ * @param <T> the type of the data.
+ */
+public interface DataChangeListener<T> {
+
+	/**
+	 * Called at most once, when the server data differs from the local data.
+	 *
+	 * @param newData the server data, which replaces the local data.
+	 */
+	public void dataChanged(T newData);
+}
@@ -1,8 +1,18 @@
 package nu.placebo.whatsup.datahandling;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
+import nu.placebo.whatsup.constants.Constants;
 import nu.placebo.whatsup.ctrl.SessionHandler;
 import nu.placebo.whatsup.model.Annotation;
 import nu.placebo.whatsup.model.Comment;
@@ -13,16 +23,17 @@ import nu.placebo.whatsup.network.AnnotationCreate;
 import nu.placebo.whatsup.network.AnnotationRetrieve;
 import nu.placebo.whatsup.network.CommentCreate;
 import nu.placebo.whatsup.network.GeoLocationsRetrieve;
+import nu.placebo.whatsup.network.NetworkOperation;
 import nu.placebo.whatsup.network.NetworkOperationListener;
 import nu.placebo.whatsup.network.NetworkTask;
 import nu.placebo.whatsup.network.OperationResult;
 
 import android.content.Context;
+import android.database.SQLException;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.google.android.maps.GeoPoint;
 
@@ -35,28 +46,83 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 	private DataProvider(Context c) {
 		this.c = c;
 		
-		DatabaseConnectionLayer.setDatabaseHelper(new DatabaseHelper(c));
+		DatabaseHelper dbHelper = new DatabaseHelper(c);
+		DatabaseConnectionLayer.setDatabaseHelper(dbHelper);
+		writer = new DatabaseWriter(dbHelper);
+		cacheGovernor = new CacheGovernor(writer, annotationCache, tileCache);
+		tileFetcher = new TileFetcher(this, tileCache, Constants.ALLOWED_CONCURRENT_CALLS);
+		cacheGovernor.scheduleCheck();
 		Location lastKnownLocation = ((LocationManager) c.getSystemService(Context.LOCATION_SERVICE)).
 													getLastKnownLocation(LocationManager.GPS_PROVIDER);
 		if(lastKnownLocation == null) {
 			lastKnownLocation = ((LocationManager) c.getSystemService(Context.LOCATION_SERVICE)).
 												getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
 		}
+		GeoPoint position;
 		if(lastKnownLocation == null) {
-			addReferencePoint(new GeoPoint(57706900, 11982051), "physical_position");
-			for(ReferencePoint rp : getAllReferencePoints()) {
-				Log.i("Name is: ", rp.getName());
-			}
-			setCurrentReferencePoint(-1);
+			position = new GeoPoint(57706900, 11982051);
 		} else {
-			addReferencePoint(new GeoPoint((int)(lastKnownLocation.getLatitude() * 1000000 + 0.5),
-					(int)(lastKnownLocation.getLongitude() * 1000000 + 0.5)),
-					"physical_position");
-			setCurrentReferencePoint(-1);
+			position = LocationIngester.toGeoPoint(lastKnownLocation);
+		}
+		physicalPositionId = DatabaseConnectionLayer.findReferencePoint(PHYSICAL_POSITION_NAME);
+		if(physicalPositionId < 0) {
+			physicalPositionId = DatabaseConnectionLayer.addReferencePoint(position, PHYSICAL_POSITION_NAME);
 		}
+		for(ReferencePoint rp : DatabaseConnectionLayer.getAllReferencePoints()) {
+			referencePoints.put(rp.getId(), rp);
+			nextReferencePointId = Math.max(nextReferencePointId, rp.getId() + 1);
+		}
+		setCurrentReferencePoint(-1);
+		
+		locationIngester = new LocationIngester(new PositionListener() {
+			public void positionChanged(final GeoPoint position) {
+				writer.enqueue(PHYSICAL_LOCATION_KEY, new DatabaseWriter.Write() {
+					public boolean write() {
+						DatabaseConnectionLayer.updateReferencePointLocation(physicalPositionId, position);
+						return true;
+					}
+				});
+			}
+		});
+		locationIngester.addPositionListener(new PositionListener() {
+			public void positionChanged(GeoPoint position) {
+				synchronized(DataProvider.this) {
+					referencePoints.get(physicalPositionId).setGeoPoint(position);
+				}
+			}
+		});
 	}
 	
 	private static volatile DataProvider instance;
+	
+	//The number of annotations kept in memory.
+	private static final int ANNOTATION_CACHE_SIZE = 50;
+	
+	//Location fixes are queued under this key, so only the last one is written.
+	//The LocationIngester already keeps them to one per persist interval.
+	private static final String PHYSICAL_LOCATION_KEY = "physical location";
+	
+	//Changes of the current reference point are queued under this key.
+	private static final String CURRENT_REFERENCE_POINT_KEY = "current reference point";
+	
+	//The number of tiles whose fetch dates are kept in memory.
+	private static final int TILE_CACHE_SIZE = 512;
+	
+	//The name the physical position of the phone is stored under.
+	private static final String PHYSICAL_POSITION_NAME = "physical_position";
+	
+	//The server sends an annotation without its comments, which are stored
+	//apart, so only the rest of the local copy is compared to it.
+	private static final Comparator<Annotation> IGNORING_COMMENTS = new Comparator<Annotation>() {
+		public int compare(Annotation a, Annotation b) {
+			return (withoutComments(a).equals(withoutComments(b)) ? 0 : 1);
+		}
+		
+		private Annotation withoutComments(Annotation a) {
+			return new Annotation(a.getGeoLocation(), a.getBody(), a.getAuthor(),
+					new LinkedList<Comment>());
+		}
+	};
 
 	/**
 	 * Gets the single instance of this class. The context parameter is only necessary the
@@ -79,21 +145,43 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 	 * This method supplies the caller with a DataReturn<Annotation> object that will
 	 * contain the annotation with the given id, if it has previously been saved to
 	 * the database. If it was not found, the local data will be null, and the requester
-	 * will have to wait until new server data is available.
+	 * will have to wait until new server data is available. Recently used annotations
+	 * are kept in memory, so they do not have to be read from the database again.
+	 * 
+	 * If the local copy was fetched within the time to live of the freshness policy,
+	 * the server is not asked, and the DataReturn is already done, with no new data.
+	 * To show the local copy at once and only hear about it again if the server
+	 * copy differs, add a DataChangeListener to the DataReturn.
 	 * 
 	 * @param nid
 	 * @return
 	 */
-	public DataReturn<Annotation> getAnnotation(int nid) {
+	public DataReturn<Annotation> getAnnotation(final int nid) {
 		
 		DataReturn<Annotation> result;
+		Annotation local = annotationCache.get(nid);
+		long fetchDate = annotationCache.getFetchDate(nid);
+		if(local == null) {
+			local = DatabaseConnectionLayer.getAnnotation(nid);
+			if(local != null) {
+				fetchDate = DatabaseConnectionLayer.getAnnotationFetchDate(nid);
+				annotationCache.put(local, fetchDate);
+			}
+		}
 		
-		result = new DataReturn<Annotation>(DatabaseConnectionLayer.getAnnotation(nid),
-						activeObjects.size());	
-		activeObjects.add(result);
-		AnnotationRetrieve ar = new AnnotationRetrieve(nid);
-		ar.addOperationListener(result);
-		new NetworkTask<Annotation>().execute(ar);
+		long now = System.currentTimeMillis();
+		if(local != null) {
+			cacheGovernor.touch(nid, now);
+		}
+		if(local != null && freshnessPolicy.isAnnotationFresh(fetchDate, now)) {
+			return DataReturn.fresh(local);
+		}
+		result = requests.register(local, IGNORING_COMMENTS);
+		coalescer.request("annotation " + nid, new RequestCoalescer.OperationFactory<Annotation>() {
+			public NetworkOperation<Annotation> create() {
+				return new AnnotationRetrieve(nid);
+			}
+		}, result, this);
 		return result;
 	}
 	
@@ -115,7 +203,12 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 	/**
 	 * Calling this method is a request to get GeoLocations within
 	 * the rectangular area given by applying the parameters 
-	 * constraints.
+	 * constraints. The local data is the first page of cached
+	 * GeoLocations in the area, see getAnnotationMarkerPage.
+	 * 
+	 * If the markers of the whole area were fetched within the time
+	 * to live of the freshness policy, the server is not asked, and
+	 * the DataReturn is already done, with no new data.
 	 * 
 	 * @param latitudeA the latitude of the first point, in microlatitude
 	 * @param longitudeA the longitude of the first point, in microlongitude
@@ -133,20 +226,258 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 		int minLong = Math.min(longitudeA, longitudeB);
 
 		DataReturn<List<GeoLocation>> result;
-		GeoLocationsRetrieve glr = new GeoLocationsRetrieve(
-				(latitudeA - 0.5) / 1000000, (longitudeA - 0.5) / 1000000,
-				(latitudeB - 0.5) / 1000000, (longitudeB - 0.5) / 1000000);
+		prefetcher.viewportShown(maxLat, maxLong, minLat, minLong);
+		List<GeoLocation> local = DatabaseConnectionLayer.getAnnotationMarkers(
+				maxLat, maxLong, minLat, minLong, Integer.MIN_VALUE, Constants.MARKER_PAGE_SIZE);
+		long now = System.currentTimeMillis();
+		cacheGovernor.touch(local, now);
+		if(DatabaseConnectionLayer.isRegionFetchedSince(maxLat, maxLong, minLat, minLong,
+				freshnessPolicy.getMarkersFetchedSince(now))) {
+			return DataReturn.fresh(local);
+		}
+		result = requests.register(local);
+		requestMarkers(latitudeA, longitudeA, latitudeB, longitudeB, result);
+		return result;
+	}
+	
+	/**
+	 * Like getAnnotationMarkers, but delivers the markers of the area as changes.
+	 * The local data holds every marker stored within the area, as added. If
+	 * the server's markers differ from those, the new data holds only the
+	 * markers that were added, changed or removed, so a map showing the local
+	 * data can be brought up to date by redrawing just those.
+	 * 
+	 * Only the difference between the stored and the fetched markers is written
+	 * to the database, whichever of the two methods made the request.
+	 * 
+	 * @param latitudeA the latitude of the first point, in microlatitude
+	 * @param longitudeA the longitude of the first point, in microlongitude
+	 * @param latitudeB the latitude of the second point, in microlatitude
+	 * @param longitudeB the longitude of the second point, in microlngitude
+	 * @return a DataReturn object containing the stored markers of the area,
+	 * and later the changes to them, if any
+	 */
+	public DataReturn<MarkerDelta> getAnnotationMarkerChanges(int latitudeA,
+			int longitudeA, int latitudeB, int longitudeB) {
+		int maxLat = Math.max(latitudeA, latitudeB);
+		int maxLong = Math.max(longitudeA, longitudeB);
+		int minLat = Math.min(latitudeA, latitudeB);
+		int minLong = Math.min(longitudeA, longitudeB);
+
+		prefetcher.viewportShown(maxLat, maxLong, minLat, minLong);
+		List<GeoLocation> stored = DatabaseConnectionLayer.getAnnotationMarkers(
+				maxLat, maxLong, minLat, minLong);
+		long now = System.currentTimeMillis();
+		cacheGovernor.touch(stored, now);
+		MarkerDelta local = MarkerDelta.compute(new ArrayList<GeoLocation>(0), stored);
+		if(DatabaseConnectionLayer.isRegionFetchedSince(maxLat, maxLong, minLat, minLong,
+				freshnessPolicy.getMarkersFetchedSince(now))) {
+			return DataReturn.fresh(local);
+		}
+		DataReturn<MarkerDelta> result = requests.register(local);
+		requestMarkers(latitudeA, longitudeA, latitudeB, longitudeB,
+				new DeltaListener(stored, result));
+		return result;
+	}
+	
+	/**
+	 * Streams the markers within the rectangular area given by the parameters
+	 * to the listener, in parts. The stored markers are delivered first, a page
+	 * at a time, so the first of them can be drawn at once. The area is covered
+	 * by the tiles of a fixed grid, see MarkerTile, so a viewport that has only
+	 * moved a little asks for the same tiles as before. The tiles are fetched
+	 * separately, ALLOWED_CONCURRENT_CALLS at a time, and the changes each tile
+	 * brings are delivered as soon as it arrives. Tiles fetched within the time
+	 * to live of the freshness policy are not fetched again.
+	 * 
+	 * @param latitudeA the latitude of the first point, in microlatitude
+	 * @param longitudeA the longitude of the first point, in microlongitude
+	 * @param latitudeB the latitude of the second point, in microlatitude
+	 * @param longitudeB the longitude of the second point, in microlngitude
+	 * @param listener gets the markers, as deltas starting from none
+	 * @param executor runs each call of the listener, e.g. one posting to a Handler
+	 * @return the stream, which can be cancelled
+	 */
+	public MarkerStream streamAnnotationMarkers(int latitudeA, int longitudeA,
+			int latitudeB, int longitudeB, MarkerStreamListener listener, Executor executor) {
+		int maxLat = Math.max(latitudeA, latitudeB);
+		int maxLong = Math.max(longitudeA, longitudeB);
+		int minLat = Math.min(latitudeA, latitudeB);
+		int minLong = Math.min(longitudeA, longitudeB);
+		
+		MarkerStream stream = new MarkerStream(listener, executor);
+		prefetcher.viewportShown(maxLat, maxLong, minLat, minLong);
+		List<GeoLocation> stored = DatabaseConnectionLayer.getAnnotationMarkers(
+				maxLat, maxLong, minLat, minLong);
+		long now = System.currentTimeMillis();
+		cacheGovernor.touch(stored, now);
+		stream.offerStored(stored, Constants.MARKER_PAGE_SIZE);
 		
-		synchronized(this) {
-			result = new DataReturn<List<GeoLocation>>(DatabaseConnectionLayer.getAnnotationMarkers(
-											maxLat, maxLong, minLat, minLong), activeObjects.size());
-			activeObjects.add(result);
+		//Whether a tile is fresh is looked up by the tile fetcher, off this thread.
+		for(MarkerTile tile : MarkerTile.cover(maxLat, maxLong, minLat, minLong)) {
+			tileFetcher.fetch(tile, stream, stream.tileListener(tile.getMaxLat(),
+					tile.getMaxLong(), tile.getMinLat(), tile.getMinLong()));
 		}
-		glr.addOperationListener(result);
-		new NetworkTask<List<GeoLocation>>().execute(glr);
+		return stream;
+	}
+	
+	//Asks the server for the markers of an area, or joins a request for the
+	//same area in flight. The markers are stored once, whoever listens.
+	void requestMarkers(int latitudeA, int longitudeA, int latitudeB, int longitudeB,
+			NetworkOperationListener<List<GeoLocation>> listener) {
+		int maxLat = Math.max(latitudeA, latitudeB);
+		int maxLong = Math.max(longitudeA, longitudeB);
+		int minLat = Math.min(latitudeA, latitudeB);
+		int minLong = Math.min(longitudeA, longitudeB);
+		final double[] area = {(latitudeA - 0.5) / 1000000, (longitudeA - 0.5) / 1000000,
+							   (latitudeB - 0.5) / 1000000, (longitudeB - 0.5) / 1000000};
+		
+		//The key is the same whichever corners the area was given by.
+		coalescer.request("markers " + maxLat + "," + maxLong + "," + minLat + "," + minLong,
+				new RequestCoalescer.OperationFactory<List<GeoLocation>>() {
+					public NetworkOperation<List<GeoLocation>> create() {
+						return new GeoLocationsRetrieve(area);
+					}
+				}, listener, new RegionListener(maxLat, maxLong, minLat, minLong));
+	}
+	
+	/**
+	 * Gets one page of the GeoLocations stored locally within the rectangular
+	 * area given by the parameters, ordered by id. No network call is made.
+	 * To go through a whole area, start with Integer.MIN_VALUE and then pass the
+	 * id of the last GeoLocation of each page, until a page comes back shorter
+	 * than the limit.
+	 * 
+	 * @param latitudeA the latitude of the first point, in microlatitude
+	 * @param longitudeA the longitude of the first point, in microlongitude
+	 * @param latitudeB the latitude of the second point, in microlatitude
+	 * @param longitudeB the longitude of the second point, in microlongitude
+	 * @param afterNid only GeoLocations with a greater id are returned
+	 * @param limit the maximum number of GeoLocations to return
+	 * @return the page, at most limit GeoLocations long
+	 */
+	public List<GeoLocation> getAnnotationMarkerPage(int latitudeA, int longitudeA,
+			int latitudeB, int longitudeB, int afterNid, int limit) {
+		List<GeoLocation> page = DatabaseConnectionLayer.getAnnotationMarkers(
+				Math.max(latitudeA, latitudeB), Math.max(longitudeA, longitudeB),
+				Math.min(latitudeA, latitudeB), Math.min(longitudeA, longitudeB),
+				afterNid, limit);
+		cacheGovernor.touch(page, System.currentTimeMillis());
+		return page;
+	}
+	
+	/**
+	 * Searches the locally stored annotations for the given words, in their
+	 * titles, bodies and comments. No network call is made, so this works
+	 * offline, but only finds what has been fetched before.
+	 * 
+	 * @param query the words to search for. Each word matches words starting
+	 * with it, and all of them have to match.
+	 * @param limit the maximum number of results
+	 * @return the GeoLocations of the matching annotations, best match first
+	 */
+	public List<GeoLocation> search(String query, int limit) {
+		List<GeoLocation> result = DatabaseConnectionLayer.search(query, limit);
+		cacheGovernor.touch(result, System.currentTimeMillis());
 		return result;
 	}
 	
+	/**
+	 * Fetches every annotation within the rectangular area given by the parameters,
+	 * with bodies and comments, and stores them, so the area can be used offline.
+	 * The listener is called on the UI thread when done, with the number of
+	 * annotations stored. The quotas of the cache governor still apply, and may
+	 * have to be raised for a large area.
+	 * 
+	 * @param latitudeA the latitude of the first point, in microlatitude
+	 * @param longitudeA the longitude of the first point, in microlongitude
+	 * @param latitudeB the latitude of the second point, in microlatitude
+	 * @param longitudeB the longitude of the second point, in microlngitude
+	 * @param listener the listener, or null
+	 */
+	public void prefetchRegion(int latitudeA, int longitudeA, int latitudeB, int longitudeB,
+			NetworkOperationListener<Integer> listener) {
+		RegionPrefetch rp = new RegionPrefetch(new int[] {
+				Math.max(latitudeA, latitudeB), Math.max(longitudeA, longitudeB),
+				Math.min(latitudeA, latitudeB), Math.min(longitudeA, longitudeB)},
+				writer, cacheGovernor, annotationCache);
+		if(listener != null) {
+			rp.addOperationListener(listener);
+		}
+		new NetworkTask<Integer>().execute(rp);
+	}
+	
+	/**
+	 * Writes the locally stored annotations within the rectangular area given by
+	 * the parameters, with bodies and comments, as a region pack. Writes that are
+	 * still queued are waited for first. This reads the whole area, so it should
+	 * not be called on the UI thread.
+	 * 
+	 * @param latitudeA the latitude of the first point, in microlatitude
+	 * @param longitudeA the longitude of the first point, in microlongitude
+	 * @param latitudeB the latitude of the second point, in microlatitude
+	 * @param longitudeB the longitude of the second point, in microlngitude
+	 * @param out where the pack is written. It is not closed.
+	 * @return the number of annotations written
+	 * @throws IOException if the pack could not be written
+	 */
+	public int exportRegionPack(int latitudeA, int longitudeA, int latitudeB, int longitudeB,
+			OutputStream out) throws IOException {
+		try {
+			writer.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return DatabaseConnectionLayer.exportRegionPack(new int[] {
+				Math.max(latitudeA, latitudeB), Math.max(longitudeA, longitudeB),
+				Math.min(latitudeA, latitudeB), Math.min(longitudeA, longitudeB)},
+				out);
+	}
+	
+	/**
+	 * Stores the annotations of a region pack in one transaction, on the
+	 * database writer thread, and waits for it. Annotations fetched after the
+	 * pack was made are not replaced. This should not be called on the UI
+	 * thread.
+	 * 
+	 * @param in the pack, as written by exportRegionPack. It is not closed.
+	 * @return the number of annotations stored
+	 * @throws IOException if the pack could not be read, in which case nothing is stored
+	 */
+	public int importRegionPack(InputStream in) throws IOException {
+		final RegionPack.Reader pack = new RegionPack.Reader(in);
+		final List<GeoLocation> stored = new ArrayList<GeoLocation>();
+		final IOException[] error = new IOException[1];
+		//The pack is read while it is written, so the import can not be retried
+		//like a write of a batch. It runs after the queued writes instead, in a
+		//transaction of its own.
+		writer.enqueueMaintenance(new Object(), new Runnable() {
+			public void run() {
+				try {
+					stored.addAll(DatabaseConnectionLayer.importRegionPack(pack));
+				} catch (IOException e) {
+					error[0] = e;
+				} catch (SQLException e) {
+					error[0] = new IOException("Could not store the pack: " + e.getMessage());
+				}
+				for(GeoLocation gl : stored) {
+					annotationCache.remove(gl.getId());
+				}
+				cacheGovernor.rowsStored(stored.size());
+			}
+		});
+		try {
+			writer.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while importing the pack");
+		}
+		if(error[0] != null) {
+			throw error[0];
+		}
+		return stored.size();
+	}
+	
 	/**
 	 * Gets the ReferencePoint that is currently used as reference point.
 	 * In the case that the user has not chosen a reference point, the physical
@@ -154,18 +485,28 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 	 * 
 	 * @return the current reference point, as a ReferencePoint object.
 	 */
-	public ReferencePoint getCurrentReferencePoint() {
+	public synchronized ReferencePoint getCurrentReferencePoint() {
 		return currentReferencePoint;
 	}
 	
 	/**
 	 * Returns all reference points saved in the database, and the physical
-	 * position of the phone, which is always a reference point.
+	 * position of the phone, which is always a reference point. The current
+	 * reference point is first in the list.
 	 * 
 	 * @return all reference point, including the physical location of the phone.
 	 */
-	public List<ReferencePoint> getAllReferencePoints() {
-		return DatabaseConnectionLayer.getAllReferencePoints();
+	public synchronized List<ReferencePoint> getAllReferencePoints() {
+		List<ReferencePoint> result = new ArrayList<ReferencePoint>(referencePoints.size());
+		if(currentReferencePoint != null) {
+			result.add(currentReferencePoint);
+		}
+		for(ReferencePoint rp : referencePoints.values()) {
+			if(rp != currentReferencePoint) {
+				result.add(rp);
+			}
+		}
+		return result;
 	}
 	
 	/**
@@ -176,27 +517,67 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 	 * @param id the id of the already existing reference point. If the id does not
 	 * match any existing reference point, nothing changes.
 	 */
-	public void setCurrentReferencePoint(int id) {
-		currentReferencePoint = DatabaseConnectionLayer.setCurrentReferencePoint(id);
+	public synchronized void setCurrentReferencePoint(int id) {
+		ReferencePoint rp = referencePoints.get(id < 0 ? physicalPositionId : id);
+		if(rp == null) {
+			return;
+		}
+		currentReferencePoint = rp;
+		final int currentId = rp.getId();
+		writer.enqueue(CURRENT_REFERENCE_POINT_KEY, new DatabaseWriter.Write() {
+			public boolean write() {
+				DatabaseConnectionLayer.setCurrentReferencePoint(currentId);
+				return true;
+			}
+		});
 	}
 	
 	/**
-	 * Adds a reference point to the database.
+	 * Adds a reference point to the database, unless there already is one
+	 * with the same name. The point is usable at once; it is written to the
+	 * database in the background.
 	 * 
 	 * @param gp the geographical location of the reference point.
 	 * @param name the name of the reference point.
 	 */
-	public void addReferencePoint(GeoPoint gp, String name) {
-		DatabaseConnectionLayer.addReferencePoint(gp, name);
+	public synchronized void addReferencePoint(final GeoPoint gp, final String name) {
+		for(ReferencePoint rp : referencePoints.values()) {
+			if(rp.getName().equals(name)) {
+				return;
+			}
+		}
+		//Ids are handed out here rather than by the database, so the caller
+		//does not wait for the insert. They only grow, so a point can not get
+		//the id of one whose removal is still queued.
+		final int id = nextReferencePointId++;
+		referencePoints.put(id, new ReferencePoint(id, gp, name));
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				return DatabaseConnectionLayer.addReferencePoint(id, gp, name);
+			}
+		});
 	}
 		
 	/**
-	 * Removes a reference point from the database.
+	 * Removes a reference point from the database. The physical location of
+	 * the phone can not be removed. If the removed point was the current
+	 * reference point, the physical location becomes the current one.
 	 * 
-	 * @param gl the point to remove
+	 * @param id the id of the point to remove
 	 */
-	public void removeReferencePoint(int id) {
-		DatabaseConnectionLayer.removeReferencePoint(id);
+	public synchronized void removeReferencePoint(final int id) {
+		if(id == physicalPositionId || referencePoints.remove(id) == null) {
+			return;
+		}
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				DatabaseConnectionLayer.removeReferencePoint(id);
+				return true;
+			}
+		});
+		if(currentReferencePoint != null && currentReferencePoint.getId() == id) {
+			setCurrentReferencePoint(-1);
+		}
 	}
 	
 	/**
@@ -226,8 +607,8 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 		new NetworkTask<Annotation>().execute(ac);
 	}
 	
-	public void createComment(int nid, String author, String commentText, String title,
-							  NetworkOperationListener<Comment> listener) {
+	public void createComment(final int nid, final String author, final String commentText,
+							  final String title, NetworkOperationListener<Comment> listener) {
 		SessionHandler sh = SessionHandler.getInstance(this.c);
 		CommentCreate cc = new CommentCreate(title, commentText, nid,sh.getUserName(), sh.getSession());
 
@@ -235,65 +616,266 @@ public class DataProvider implements NetworkOperationListener<Annotation>, Locat
 			cc.addOperationListener(listener);
 		}
 		new NetworkTask<Comment>().execute(cc);
-		DatabaseConnectionLayer.storeComment(nid, author, commentText, title);
+		annotationCache.remove(nid);
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				DatabaseConnectionLayer.storeComment(nid, author, commentText, title);
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Sets how long fetched data is trusted before the server is asked again.
+	 * 
+	 * @param policy the new policy. FreshnessPolicy.DEFAULT is used until this is called.
+	 */
+	public void setFreshnessPolicy(FreshnessPolicy policy) {
+		if(policy == null) {
+			throw new IllegalArgumentException("The freshness policy can not be null");
+		}
+		freshnessPolicy = policy;
+	}
+	
+	/**
+	 * @return the policy deciding how long fetched data is trusted.
+	 */
+	public FreshnessPolicy getFreshnessPolicy() {
+		return freshnessPolicy;
+	}
+	
+	/**
+	 * Returns the coalescer of the network requests for annotations and markers,
+	 * whose counters show how many network calls were saved.
+	 * 
+	 * @return the request coalescer.
+	 */
+	public RequestCoalescer getRequestCoalescer() {
+		return coalescer;
+	}
+	
+	/**
+	 * Returns the registry of the requests in flight.
+	 * 
+	 * @return the request registry.
+	 */
+	public RequestRegistry getRequestRegistry() {
+		return requests;
+	}
+	
+	/**
+	 * Returns the governor keeping the database within its quotas. The quotas
+	 * can be changed through it, and its counters show how much is evicted.
+	 * 
+	 * @return the cache governor.
+	 */
+	public CacheGovernor getCacheGovernor() {
+		return cacheGovernor;
+	}
+	
+	/**
+	 * Returns the ingester of the position fixes of the phone. Its thresholds
+	 * can be changed through it, and listeners added to it see every accepted
+	 * fix as it arrives.
+	 * 
+	 * @return the location ingester.
+	 */
+	public LocationIngester getLocationIngester() {
+		return locationIngester;
+	}
+	
+	/**
+	 * Returns the prefetcher of the markers of the viewport the map is heading
+	 * toward. The map reports its movements to it, and its budget can be
+	 * changed and hit rate read through it.
+	 * 
+	 * @return the viewport prefetcher.
+	 */
+	public ViewportPrefetcher getViewportPrefetcher() {
+		return prefetcher;
+	}
+	
+	/**
+	 * Returns the fetch dates of the marker tiles, whose counters show how
+	 * many tiles the streamed viewports could be served without fetching.
+	 * 
+	 * @return the tile cache.
+	 */
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+	
+	//The fetcher of the marker tiles, which the viewport prefetcher shares.
+	TileFetcher getTileFetcher() {
+		return tileFetcher;
+	}
+	
+	/**
+	 * Returns the in-memory annotation cache, whose counters show how well
+	 * ANNOTATION_CACHE_SIZE fits the way the application is used.
+	 * 
+	 * @return the annotation cache.
+	 */
+	public AnnotationCache getAnnotationCache() {
+		return annotationCache;
+	}
+	
+	/**
+	 * Blocks until everything handed to the database so far has been written.
+	 * Writes are otherwise done in the background, so this is mostly of use
+	 * to tests that want to read back what they stored.
+	 * 
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		writer.flush();
 	}
 	
 	/**
-	 * Called by DataReturn object to notify the DataProvider about new data
-	 * to insert into the local database.
+	 * Called by DataReturn object to notify the DataProvider that it has finished.
+	 * The data itself is stored by the listeners the DataProvider adds to each
+	 * request, so that its fetch date is recorded even when it did not change.
 	 * 
 	 * @param newData whether the data differs from that in the local database
 	 * @param id the id of the DataReturn that has finished
 	 */
-	@SuppressWarnings("unchecked")
 	void newDataRecieved(boolean newData, int id) {
-		if(newData) {
-			OperationResult<?> result = activeObjects.get(id).getNewData();
-			
-			if(result == null || result.getResult() == null) {
-				return;
-			}
-			if(!result.hasErrors()) {
-				Object data = result.getResult();
-				//Test what type the new data has		
-				if(data.getClass() == Annotation.class) {
-					if(!insertData((Annotation) data)) {
-						//TODO Error handling
-					}
-				} else if(data.getClass() == List.class) {
-					if(!insertData((List<GeoLocation>) data)) {
-						//TODO Error handling
+		requests.complete(id);
+	}
+	
+	//Queues the given Annotation for insertion into its table, and it's
+	//auxiliary information into their tables. A newer copy of the same
+	//annotation replaces it if it has not been written yet. The copy from the
+	//server has no comments, so it is not cached; once it is written, the
+	//cached copy is dropped, and the next get reads it back with its comments.
+	private boolean insertData(final Annotation a, final long fetchDate) {
+		writer.enqueue("annotation " + a.getId(), new DatabaseWriter.Write() {
+			public boolean write() {
+				if(!DatabaseConnectionLayer.storeAnnotation(a, fetchDate)) {
+					return false;
+				}
+				DatabaseWriter.afterCommit(new Runnable() {
+					public void run() {
+						annotationCache.remove(a.getId());
+						cacheGovernor.rowsStored(1);
 					}
+				});
+				return true;
+			}
+		});
+		return true;
+	}
+
+	//Queues the given list with GeoLocations for insertion into its table,
+	//and records that the area they were fetched for is now known. Only the
+	//difference to what is stored for the area is written, and markers no
+	//longer in the area are deleted. The difference is computed on the writer
+	//thread, so it takes every write committed before it into account. If
+	//the area is a marker tile, the tile is remembered as fresh once the
+	//markers are committed, not before, so no stream reads it too early.
+	private boolean insertData(final List<GeoLocation> glList, final int maxLat, final int maxLong,
+			final int minLat, final int minLong, final long fetchDate) {
+		final long expiredBefore = freshnessPolicy.getMarkersFetchedSince(fetchDate);
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				final MarkerDelta delta = MarkerDelta.compute(DatabaseConnectionLayer.getAnnotationMarkers(
+						maxLat, maxLong, minLat, minLong), glList);
+				if(!DatabaseConnectionLayer.storeMarkerDelta(delta, fetchDate)) {
+					return false;
 				}
+				DatabaseConnectionLayer.storeFetchedRegion(maxLat, maxLong, minLat, minLong,
+						fetchDate, expiredBefore);
+				DatabaseWriter.afterCommit(new Runnable() {
+					public void run() {
+						for(GeoLocation gl : delta.getRemoved()) {
+							annotationCache.remove(gl.getId());
+						}
+						MarkerTile tile = MarkerTile.withBounds(maxLat, maxLong, minLat, minLong);
+						if(tile != null) {
+							tileCache.put(tile, fetchDate);
+						}
+						cacheGovernor.rowsStored(delta.getAdded().size());
+					}
+				});
+				return true;
 			}
-		}
-		activeObjects.remove(id);
+		});
+		return true;
 	}
 	
-	//Inserts the given Annotation into its table, and it's auxiliary
-	//information into their tables. If error occurs, false is returned.
-	private boolean insertData(Annotation a) {
-		return DatabaseConnectionLayer.storeAnnotation(a);
+	//Stores the markers fetched for an area, and records when the area was
+	//fetched even if none of them differ from the ones already stored.
+	private class RegionListener implements NetworkOperationListener<List<GeoLocation>> {
+		private final int maxLat;
+		private final int maxLong;
+		private final int minLat;
+		private final int minLong;
+		
+		RegionListener(int maxLat, int maxLong, int minLat, int minLong) {
+			this.maxLat = maxLat;
+			this.maxLong = maxLong;
+			this.minLat = minLat;
+			this.minLong = minLong;
+		}
+		
+		public void operationExcecuted(OperationResult<List<GeoLocation>> result) {
+			if(result != null && !result.hasErrors() && result.getResult() != null) {
+				insertData(result.getResult(), maxLat, maxLong, minLat, minLong,
+						System.currentTimeMillis());
+			}
+		}
 	}
 
-	//Inserts the given list with GeoLocations into its table.
-	//If error occurs, false is returned.
-	private boolean insertData(List<GeoLocation> glList) {
-		return DatabaseConnectionLayer.storeGeoLocations(glList);
+	//Passes the markers fetched for an area on to a DataReturn as the changes
+	//to the markers its caller was given. No changes count as no new data.
+	private static class DeltaListener implements NetworkOperationListener<List<GeoLocation>> {
+		private final List<GeoLocation> shown;
+		private final DataReturn<MarkerDelta> target;
+		
+		DeltaListener(List<GeoLocation> shown, DataReturn<MarkerDelta> target) {
+			this.shown = shown;
+			this.target = target;
+		}
+		
+		public void operationExcecuted(OperationResult<List<GeoLocation>> result) {
+			MarkerDelta delta = null;
+			if(result != null && !result.hasErrors() && result.getResult() != null) {
+				delta = MarkerDelta.compute(shown, result.getResult());
+				if(delta.isEmpty()) {
+					delta = null;
+				}
+			}
+			target.operationExcecuted(new OperationResult<MarkerDelta>(
+					result == null || result.hasErrors(),
+					(result == null ? 0 : result.getStatusCode()),
+					(result == null ? null : result.getStatusMessage()),
+					delta));
+		}
 	}
 
-	private List<DataReturn<?>> activeObjects = new ArrayList<DataReturn<?>>();
+	private final DatabaseWriter writer;
+	private final CacheGovernor cacheGovernor;
+	private final LocationIngester locationIngester;
+	private final AnnotationCache annotationCache = new AnnotationCache(ANNOTATION_CACHE_SIZE);
+	private final TileCache tileCache = new TileCache(TILE_CACHE_SIZE);
+	private final TileFetcher tileFetcher;
+	private volatile FreshnessPolicy freshnessPolicy = FreshnessPolicy.DEFAULT;
+	private final RequestRegistry requests = new RequestRegistry();
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+	private final ViewportPrefetcher prefetcher = new ViewportPrefetcher();
+	private final Map<Integer, ReferencePoint> referencePoints = new LinkedHashMap<Integer, ReferencePoint>();
+	private int physicalPositionId;
+	private int nextReferencePointId;
 	private ReferencePoint currentReferencePoint;
 
 	public void operationExcecuted(OperationResult<Annotation> result) {
-		if(!result.hasErrors()) {
-			insertData(result.getResult());
+		if(result != null && !result.hasErrors() && result.getResult() != null) {
+			insertData(result.getResult(), System.currentTimeMillis());
 		}
 	}
 
 	public void onLocationChanged(Location location) {
-		DatabaseConnectionLayer.updateCurrentLocation(
-				new GeoPoint((int)location.getLatitude(), (int)location.getLongitude()));
+		locationIngester.onFix(LocationIngester.toGeoPoint(location), System.currentTimeMillis());
 	}
 	public void onProviderDisabled(String provider) {}
 	public void onProviderEnabled(String provider) {}
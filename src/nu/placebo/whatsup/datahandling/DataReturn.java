@@ -1,5 +1,15 @@
 package nu.placebo.whatsup.datahandling;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import nu.placebo.whatsup.network.NetworkOperationListener;
 import nu.placebo.whatsup.network.OperationResult;
 
@@ -11,80 +21,279 @@ import nu.placebo.whatsup.network.OperationResult;
  * much time, or block for a number of reasons - not interfere with
  * the running of application.
  *
- * Classes getting an object of this type in return must register as listeners
- * to said object. To avoid any kind of problems where the server data is returned
- * before the class has registered as a listener, either through bad programming or
- * bad thread scheduling, this method will block its own listener method until there
- * is someone listening for it.
+ * Listeners can be added at any time. If the server data arrives before
+ * anyone listens, it is kept, and a listener added later is called at once.
+ * Nothing ever blocks waiting for a listener. Each listener is called on the
+ * executor it was added with, exactly once, unless the request is cancelled.
+ *
+ * A request can be given a timeout, after which its listeners are called
+ * with no new data, and a late server response is ignored.
+ *
+ * For stale-while-revalidate, show the local data at once and add a
+ * DataChangeListener, which is only called if the server data differs. When
+ * the local data was fresh enough, the DataProvider makes no request, and the
+ * DataReturn is already done when handed out.
  *
  * @author Wange
  * @param <T> the type wanted as return.
  */
 public class DataReturn<T> implements NetworkOperationListener<T> {
 
-	private T localData;
+	/**
+	 * Runs listeners on the thread that completes the request. For server data
+	 * that is the UI thread; for a listener added after completion, it is the
+	 * thread adding it.
+	 */
+	public static final Executor CALLING_THREAD = new Executor() {
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	//Fires the timeouts of every DataReturn.
+	private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DataReturn timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private enum State { PENDING, COMPLETED, TIMED_OUT, CANCELLED }
+
+	private final T localData;
+	private final int id;
+	private final Comparator<? super T> comparator;
+	private final List<Registration> registrations = new ArrayList<Registration>();
+	private State state = State.PENDING;
 	private OperationResult<T> serverData;
-	private DataReturnListener listener;
-	private boolean canFetchNewData = false;
-	
-	private int id;
-	
+	private boolean dataIsNew;
+	private ScheduledFuture<?> timeout;
+
 	public DataReturn(T localData, int id) {
+		this(localData, id, null);
+	}
+
+	/**
+	 * @param localData the locally returned data.
+	 * @param id the id the DataProvider knows this request by.
+	 * @param comparator tells whether the server data differs from the local
+	 * data, by not returning 0, for data whose equals compares more than the
+	 * server sends. If null, equals is used.
+	 */
+	public DataReturn(T localData, int id, Comparator<? super T> comparator) {
 		this.localData = localData;
 		this.id = id;
+		this.comparator = comparator;
+	}
+
+	//Returns a DataReturn that is already done, with no new data, for local
+	//data that does not need to be revalidated.
+	static <T> DataReturn<T> fresh(T localData) {
+		DataReturn<T> result = new DataReturn<T>(localData, -1);
+		result.state = State.COMPLETED;
+		return result;
+	}
+
+	/**
+	 * @return the id the DataProvider knows this request by, or -1 if no
+	 * request was made.
+	 */
+	public int getId() {
+		return id;
 	}
-	
+
 	/**
 	 * Gets the locally returned data. If this is null, it means no
 	 * local data was found and the owner of this DataReturn object
 	 * will have to wait for their DataReturnListener-method triggering.
-	 * 
+	 *
 	 * @return the data acquired locally. Null if nothing found.
 	 */
 	public T getLocalData() {
 		return localData;
 	}
-	
+
 	/**
 	 * Gets the new data fetched from the server. Must be called
 	 * after this object has called the listener. If called before,
 	 * null will be returned.
-	 * 
+	 *
 	 * @return the new data, null if called before the listener call,
 	 * or if this method is called despite the listener call returning
 	 * false.
 	 */
-	public OperationResult <T> getNewData() {
-		return (canFetchNewData ? serverData : null);
+	public synchronized OperationResult <T> getNewData() {
+		return (dataIsNew ? serverData : null);
 	}
-	
+
+	/**
+	 * Adds a listener that is called on the thread completing the request.
+	 *
+	 * @param listener the listener.
+	 */
 	public void addDataReturnListener(DataReturnListener listener) {
-		if(this.listener == null) {
-			this.listener = listener;
-			notifyAll();
+		addDataReturnListener(listener, CALLING_THREAD);
+	}
+
+	/**
+	 * Adds a listener that is called on the given executor when the request
+	 * completes or times out, or at once if it already has.
+	 *
+	 * @param listener the listener.
+	 * @param executor runs the call of the listener, e.g. one posting to a Handler.
+	 */
+	public void addDataReturnListener(DataReturnListener listener, Executor executor) {
+		Registration r = new Registration(listener, executor);
+		boolean isNew;
+		synchronized(this) {
+			if(state == State.PENDING) {
+				registrations.add(r);
+				return;
+			}
+			if(state == State.CANCELLED) {
+				return;
+			}
+			isNew = dataIsNew;
 		}
+		r.dispatch(isNew);
+	}
+
+	/**
+	 * Adds a listener that is called on the given executor if, and only if, the
+	 * server data differs from the local data.
+	 *
+	 * @param listener the listener.
+	 * @param executor runs the call of the listener, e.g. one posting to a Handler.
+	 */
+	public void addDataChangeListener(final DataChangeListener<T> listener, Executor executor) {
+		addDataReturnListener(new DataReturnListener() {
+			public void newDataReceived(boolean dataIsNew) {
+				if(dataIsNew) {
+					listener.dataChanged(getNewData().getResult());
+				}
+			}
+		}, executor);
+	}
+
+	/**
+	 * Gives up on the server data if it has not arrived within the given time.
+	 * The listeners are then called with no new data.
+	 *
+	 * @param delay the time to wait.
+	 * @param unit the unit of the delay.
+	 */
+	public void setTimeout(long delay, TimeUnit unit) {
+		synchronized(this) {
+			if(state != State.PENDING) {
+				return;
+			}
+			if(timeout != null) {
+				timeout.cancel(false);
+			}
+			timeout = timer.schedule(new Runnable() {
+				public void run() {
+					finish(State.TIMED_OUT, null);
+				}
+			}, delay, unit);
+		}
+	}
+
+	/**
+	 * Stops waiting for the server data. The listeners are not called, and a
+	 * later response is ignored.
+	 *
+	 * @return true if the request was pending, false if it had already finished.
+	 */
+	public boolean cancel() {
+		return finish(State.CANCELLED, null);
+	}
+
+	/**
+	 * @return true if the server data has arrived, or the request timed out or
+	 * was cancelled.
+	 */
+	public synchronized boolean isDone() {
+		return state != State.PENDING;
+	}
+
+	/**
+	 * @return true if the request was cancelled.
+	 */
+	public synchronized boolean isCancelled() {
+		return state == State.CANCELLED;
+	}
+
+	/**
+	 * @return true if the server data did not arrive in time.
+	 */
+	public synchronized boolean hasTimedOut() {
+		return state == State.TIMED_OUT;
 	}
 
 	public void operationExcecuted(OperationResult<T> result) {
-		boolean threadInterupted = false;
-		while(this.listener == null || threadInterupted) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				threadInterupted = true;
+		finish(State.COMPLETED, result);
+	}
+
+	//Moves out of the pending state, at most once, and tells the DataProvider
+	//and the listeners. Returns false if the request had already finished.
+	private boolean finish(State newState, OperationResult<T> result) {
+		List<Registration> toNotify;
+		boolean isNew;
+		synchronized(this) {
+			if(state != State.PENDING) {
+				return false;
 			}
+			state = newState;
+			if(timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+			if(result != null && !result.hasErrors() && result.getResult() != null &&
+					differs(result.getResult())) {
+				serverData = result;
+				dataIsNew = true;
+			}
+			isNew = dataIsNew;
+			toNotify = new ArrayList<Registration>(registrations);
+			registrations.clear();
 		}
-		if(!threadInterupted) {
-			if(result != null && result.getResult() != null &&
-					!localData.equals(result.getResult())) {
-				this.serverData = result;
-				canFetchNewData  = true;
-				listener.newDataReceived(true);
-				DataProvider.getDataProvider(null).newDataRecieved(true, id);
-			} else {
-				listener.newDataReceived(false);
-				DataProvider.getDataProvider(null).newDataRecieved(false, id);
+		if(id >= 0) {
+			DataProvider.getDataProvider(null).newDataRecieved(isNew, id);
+		}
+		if(newState != State.CANCELLED) {
+			for(Registration r : toNotify) {
+				r.dispatch(isNew);
 			}
 		}
+		return true;
+	}
+
+	//Returns true if the server data differs from the local data.
+	private boolean differs(T server) {
+		if(comparator == null || localData == null) {
+			return !server.equals(localData);
+		}
+		return comparator.compare(server, localData) != 0;
+	}
+
+	//A listener and the executor it is called on.
+	private static class Registration {
+		private final DataReturnListener listener;
+		private final Executor executor;
+
+		Registration(DataReturnListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+
+		void dispatch(final boolean dataIsNew) {
+			executor.execute(new Runnable() {
+				public void run() {
+					listener.newDataReceived(dataIsNew);
+				}
+			});
+		}
 	}
 }
@@ -1,8 +1,14 @@
 package nu.placebo.whatsup.datahandling;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import nu.placebo.whatsup.model.Annotation;
 import nu.placebo.whatsup.model.Comment;
@@ -10,7 +16,11 @@ import nu.placebo.whatsup.model.GeoLocation;
 import nu.placebo.whatsup.model.ReferencePoint;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 import com.google.android.maps.GeoPoint;
 
@@ -19,10 +29,103 @@ import com.google.android.maps.GeoPoint;
  */
 public class DatabaseConnectionLayer {
 
+	private static final String LOG_TAG = "WhatsUp";
+	
+	private static final String[] ID_PROJECTION = {"_id"};
+	private static final String SELECT_ANNOTATION = "SELECT g.latitude, g.longitude, g.title, "
+			+ "a.body, a.author FROM " + DatabaseHelper.GEOLOCATION_TABLE + " g JOIN "
+			+ DatabaseHelper.ANNOTATION_TABLE + " a ON a.nid = g.nid WHERE g.nid = ?";
+	
+	private static final String INSERT_GEOLOCATION = "INSERT OR REPLACE INTO "
+			+ DatabaseHelper.GEOLOCATION_TABLE
+			+ " (nid, latitude, longitude, title, fetched_date, accessed_date) VALUES (?, ?, ?, ?, ?, ?)";
+	private static final String INSERT_ANNOTATION = "INSERT OR REPLACE INTO "
+			+ DatabaseHelper.ANNOTATION_TABLE
+			+ " (nid, body, author, fetched_date) VALUES (?, ?, ?, ?)";
+	private static final String DELETE_COMMENTS = "DELETE FROM "
+			+ DatabaseHelper.COMMENT_TABLE + " WHERE nid = ?";
+	private static final String INSERT_COMMENT = "INSERT INTO "
+			+ DatabaseHelper.COMMENT_TABLE
+			+ " (nid, comment, author, title, added_date) VALUES (?, ?, ?, ?, ?)";
+	
+	private static final String SELECT_FETCHED_REGION = "SELECT 1 FROM "
+			+ DatabaseHelper.FETCHED_REGION_TABLE + " WHERE max_lat >= ? AND max_long >= ? "
+			+ "AND min_lat <= ? AND min_long <= ? AND fetched_date > ? LIMIT 1";
+	
+	private static final String IN_AREA = "g.latitude < ? AND g.longitude < ? "
+			+ "AND g.latitude > ? AND g.longitude > ?";
+	private static final String FROM_AREA_ANNOTATIONS = "FROM " + DatabaseHelper.GEOLOCATION_TABLE
+			+ " g JOIN " + DatabaseHelper.ANNOTATION_TABLE + " a ON a.nid = g.nid WHERE " + IN_AREA;
+	private static final String COMMENT_COLUMNS = "c.author, c.comment, c.title, c.added_date";
+	
+	private static final String UPDATE_ACCESS_DATE = "UPDATE "
+			+ DatabaseHelper.GEOLOCATION_TABLE + " SET accessed_date = ? "
+			+ "WHERE nid = ? AND accessed_date < ?";
+	private static final String SELECT_LEAST_RECENTLY_ACCESSED = "SELECT nid, latitude, longitude FROM "
+			+ DatabaseHelper.GEOLOCATION_TABLE + " ORDER BY accessed_date LIMIT ?";
+	
+	private static final String DELETE_SEARCH_TEXT = "DELETE FROM "
+			+ DatabaseHelper.SEARCH_TABLE + " WHERE docid = ?";
+	private static final String INSERT_SEARCH_TEXT = "INSERT INTO "
+			+ DatabaseHelper.SEARCH_TABLE + " (docid, title, body, comments) "
+			+ DatabaseHelper.SELECT_SEARCH_TEXT + " WHERE g.nid = ?";
+	private static final String SELECT_SEARCH = "SELECT " + DatabaseHelper.SEARCH_TABLE
+			+ ".docid, g.latitude, g.longitude, g.title, offsets(" + DatabaseHelper.SEARCH_TABLE
+			+ ") FROM " + DatabaseHelper.SEARCH_TABLE + " JOIN " + DatabaseHelper.GEOLOCATION_TABLE
+			+ " g ON g.nid = " + DatabaseHelper.SEARCH_TABLE + ".docid WHERE "
+			+ DatabaseHelper.SEARCH_TABLE + " MATCH ?";
+	
+	//How many nids go into one IN list, well below the length limit of a
+	//statement.
+	private static final int IN_LIST_SIZE = 500;
+	
+	//How much a match in the title, the body and the comments weighs when
+	//ranking search results, in the column order of the search table.
+	private static final int[] SEARCH_WEIGHTS = {4, 2, 1};
+
 	private static DatabaseHelper dbHelper;
+	private static GeoLocationIndex markerIndex;
 	
 	static void setDatabaseHelper(DatabaseHelper dbh) {
 		dbHelper = dbh;
+		synchronized(DatabaseConnectionLayer.class) {
+			markerIndex = null;
+		}
+	}
+	
+	/**
+	 * Returns the spatial index over the geolocation table, building it from the
+	 * table the first time it is needed.
+	 * 
+	 * @return the index of all stored GeoLocations.
+	 */
+	private static synchronized GeoLocationIndex getMarkerIndex() {
+		if(markerIndex == null) {
+			GeoLocationIndex index = new GeoLocationIndex();
+			Cursor c = dbHelper.getReaderDatabase().query(DatabaseHelper.GEOLOCATION_TABLE,
+					RowMapper.GEOLOCATION.getProjection(),
+					null,null,null,null,
+					"_id");
+			for(GeoLocation gl : RowMapper.GEOLOCATION.mapAll(c)) {
+				index.put(gl);
+			}
+			markerIndex = index;
+		}
+		return markerIndex;
+	}
+	
+	//Keeps the spatial index in line with the geolocation table. If the index
+	//has not been built yet, the row will be picked up when it is.
+	private static synchronized void indexGeoLocation(GeoLocation gl) {
+		if(markerIndex != null) {
+			markerIndex.put(gl);
+		}
+	}
+	
+	private static synchronized void unindexGeoLocation(int nid) {
+		if(markerIndex != null) {
+			markerIndex.remove(nid);
+		}
 	}
 	
 	/**
@@ -33,227 +136,336 @@ public class DatabaseConnectionLayer {
 	 * @return the annotation, as represented in the database, or null, if it does not exist in the database.
 	 */
 	static Annotation getAnnotation(int nid) {
-		boolean exists = true;
-			
-		Cursor c = dbHelper.getReadableDatabase().query(
-				DatabaseHelper.ANNOTATION_TABLE, 
-				null, 
-				"nid = " + nid, 
-				null,null,null,null);
-		
-		String author = "";
-		String body = "";
-		if(c.moveToPosition(0)) {
-			author = c.getString(c.getColumnIndex("author"));
-			body = c.getString(c.getColumnIndex("body"));
-		} else {
-			exists = false;
-		}
-		
-		c = dbHelper.getReadableDatabase().query(
-				DatabaseHelper.GEOLOCATION_TABLE, 
-				null, 
-				"nid = " + nid, 
-				null,null,null,null);
+		SQLiteDatabase db = dbHelper.getReaderDatabase();
+		String[] args = {Integer.toString(nid)};
 		
-		int latitude = 0;
-		int longitude = 0;
-		String title = "";
-		if(c.moveToPosition(0)) {
-			latitude = c.getInt(c.getColumnIndex("latitude"));
-			longitude = c.getInt(c.getColumnIndex("longitude"));
-			title = c.getString(c.getColumnIndex("title"));
-		} else {
-			exists = false;
+		Cursor c = db.rawQuery(SELECT_ANNOTATION, args);
+		GeoLocation location;
+		String body;
+		String author;
+		try {
+			if(!c.moveToFirst()) {
+				return null;
+			}
+			location = new GeoLocation(nid, c.getInt(0), c.getInt(1), c.getString(2));
+			body = c.getString(3);
+			author = c.getString(4);
+		} finally {
+			c.close();
 		}
 		
-		c = dbHelper.getReadableDatabase().query(
-				DatabaseHelper.COMMENT_TABLE, 
-				null,null,null,null,null,null);
-		
-		List<Comment> comments = new ArrayList<Comment>();
-		if(c.moveToPosition(0)) {
-			do {
-				String comment = c.getString(c.getColumnIndex("comment"));
-				String cTitle = c.getString(c.getColumnIndex("title"));
-				String cAuthor = c.getString(c.getColumnIndex("author"));
-				Date cDate = new Date(c.getLong(c.getColumnIndex("added_date")));
-				comments.add(new Comment(cAuthor, comment, cTitle, cDate));
-			} while(!c.isLast());
-		} else {
-			exists = false;
+		List<Comment> comments = RowMapper.COMMENT.mapAll(db.query(DatabaseHelper.COMMENT_TABLE,
+				RowMapper.COMMENT.getProjection(),
+				"nid = ?",
+				args,
+				null,null,
+				"added_date"));
+		return new Annotation(location, body, author, comments);
+	}
+	
+	/**
+	 * Returns when the annotation with the given nid was last fetched from the server.
+	 * 
+	 * @param nid the node id for the annotation.
+	 * @return the fetch date in milliseconds, or 0 if the annotation is not stored or was
+	 * stored before fetch dates were recorded.
+	 */
+	static long getAnnotationFetchDate(int nid) {
+		Cursor c = dbHelper.getReaderDatabase().query(DatabaseHelper.ANNOTATION_TABLE,
+				new String[] {"fetched_date"},
+				"nid = ?",
+				new String[] {Integer.toString(nid)},
+				null,null,null);
+		try {
+			return (c.moveToFirst() ? c.getLong(0) : 0);
+		} finally {
+			c.close();
 		}
-		c.close();
-		
-		synchronized(dbHelper) {
-			return (exists ? new Annotation(new GeoLocation(nid, latitude, longitude, title), 
-									body, author, comments) : null);
+	}
+	
+	/**
+	 * Tells whether the markers of the whole area were fetched from the server
+	 * after the given time, in one request.
+	 * 
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @param since the time in milliseconds the fetch must be more recent than.
+	 * @return true if a fetched area covering the given one is recent enough.
+	 */
+	static boolean isRegionFetchedSince(int maxLat, int maxLong, int minLat, int minLong,
+			long since) {
+		Cursor c = dbHelper.getReaderDatabase().rawQuery(SELECT_FETCHED_REGION,
+				new String[] {Integer.toString(maxLat), Integer.toString(maxLong),
+							  Integer.toString(minLat), Integer.toString(minLong),
+							  Long.toString(since)});
+		try {
+			return c.moveToFirst();
+		} finally {
+			c.close();
 		}
 	}
 	
 	/**
-	 * Returns a list of the GeoLocations within the area given by applying the parameters 
-	 * constraints.
+	 * Records that the markers of an area were fetched. Areas that are no longer
+	 * trusted, or that lie within the new one, are forgotten.
 	 * 
 	 * @param maxLat
 	 * @param maxLong
 	 * @param minLat
 	 * @param minLong
-	 * @return
+	 * @param fetchDate when the markers were fetched, in milliseconds.
+	 * @param expiredBefore areas fetched before this time are removed.
 	 */
-	static List<GeoLocation> getAnnotationMarkers(int maxLat, 
-			int maxLong, int minLat, int minLong) {
-		
-		String[] selectionArgs = {Integer.toString(maxLat), Integer.toString(maxLong),
-								  Integer.toString(minLat), Integer.toString(minLong)};
-		
-		Cursor c = dbHelper.getReadableDatabase().query(DatabaseHelper.GEOLOCATION_TABLE,
-				null,
-				"latitude < ? AND longitude < ? AND latitude > ? AND longitude > ?",
-				selectionArgs,
-				null,null,null);
-		
-		List<GeoLocation> locations = new ArrayList<GeoLocation>();
-		if(c.moveToLast()) {
-			for(int i = 0; i < 10; i++) {
-				locations.add(new GeoLocation(c.getInt(c.getColumnIndex("nid")),
-								c.getInt(c.getColumnIndex("latitude")),
-								c.getInt(c.getColumnIndex("longitude")),
-								c.getString(c.getColumnIndex("title"))));
-				if(!c.moveToPrevious()) {
-					break;
+	static void storeFetchedRegion(int maxLat, int maxLong, int minLat, int minLong,
+			long fetchDate, long expiredBefore) {
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		db.delete(DatabaseHelper.FETCHED_REGION_TABLE,
+				"fetched_date < ? OR (max_lat <= ? AND max_long <= ? AND min_lat >= ? AND min_long >= ?)",
+				new String[] {Long.toString(expiredBefore),
+							  Integer.toString(maxLat), Integer.toString(maxLong),
+							  Integer.toString(minLat), Integer.toString(minLong)});
+		ContentValues values = new ContentValues();
+		values.put("max_lat", maxLat);
+		values.put("max_long", maxLong);
+		values.put("min_lat", minLat);
+		values.put("min_long", minLong);
+		values.put("fetched_date", fetchDate);
+		db.insert(DatabaseHelper.FETCHED_REGION_TABLE, null, values);
+	}
+	
+	/**
+	 * Searches the titles, bodies and comments of the stored annotations. Every
+	 * word of the query has to match the start of a word in the annotation.
+	 * Results are ranked by where the words matched, a match in the title
+	 * counting the most and a match in a comment the least.
+	 * 
+	 * @param query the words to search for.
+	 * @param limit the maximum number of results.
+	 * @return the GeoLocations of the best matching annotations, best first.
+	 */
+	static List<GeoLocation> search(String query, int limit) {
+		String match = toMatchExpression(query);
+		if(match == null || limit <= 0) {
+			return new ArrayList<GeoLocation>(0);
+		}
+		long start = System.nanoTime();
+		//The worst of the best results so far is at the head, so the cursor can
+		//be ranked in one pass without sorting every match.
+		PriorityQueue<SearchHit> best = new PriorityQueue<SearchHit>(Math.min(limit, 100) + 1);
+		int matches = 0;
+		Cursor c = dbHelper.getReaderDatabase().rawQuery(SELECT_SEARCH, new String[] {match});
+		try {
+			while(c.moveToNext()) {
+				best.add(new SearchHit(new GeoLocation(c.getInt(0), c.getInt(1),
+						c.getInt(2), c.getString(3)), score(c.getString(4))));
+				if(best.size() > limit) {
+					best.poll();
+				}
+				matches++;
+			}
+		} catch(SQLException e) {
+			Log.w(LOG_TAG, "Search failed", e);
+		} finally {
+			c.close();
+		}
+		GeoLocation[] result = new GeoLocation[best.size()];
+		for(int i = result.length - 1; i >= 0; i--) {
+			result[i] = best.poll().location;
+		}
+		//What the user typed is not logged.
+		Log.d(LOG_TAG, "Searched: " + matches + " matches in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		return Arrays.asList(result);
+	}
+	
+	//Turns what the user typed into an FTS query that matches every word as a
+	//prefix. Anything but letters and digits is dropped, so the query syntax
+	//can not be used by mistake. Returns null if no word is left.
+	private static String toMatchExpression(String query) {
+		StringBuilder match = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		for(int i = 0; i <= query.length(); i++) {
+			char ch = (i < query.length() ? query.charAt(i) : ' ');
+			if(Character.isLetterOrDigit(ch)) {
+				word.append(Character.toLowerCase(ch));
+			} else if(word.length() > 0) {
+				if(match.length() > 0) {
+					match.append(' ');
 				}
+				match.append(word).append('*');
+				word.setLength(0);
 			}
 		}
+		return (match.length() > 0 ? match.toString() : null);
+	}
+	
+	//Scores a result from the output of offsets(), which holds four numbers per
+	//matched term: the column, the term, the byte offset and the size.
+	private static int score(String offsets) {
+		int score = 0;
+		String[] values = offsets.split(" ");
+		for(int i = 0; i + 3 < values.length; i += 4) {
+			score += SEARCH_WEIGHTS[Integer.parseInt(values[i])];
+		}
+		return score;
+	}
+	
+	private static class SearchHit implements Comparable<SearchHit> {
+		final GeoLocation location;
+		final int score;
 		
-		c.close();
-		return locations;
+		SearchHit(GeoLocation location, int score) {
+			this.location = location;
+			this.score = score;
+		}
+		
+		//Lower scores first, and of equal scores the higher nid, so that the
+		//head of the queue is the hit to drop.
+		public int compareTo(SearchHit other) {
+			if(score != other.score) {
+				return (score < other.score ? -1 : 1);
+			}
+			int id = location.getId();
+			int otherId = other.location.getId();
+			return (id > otherId ? -1 : (id == otherId ? 0 : 1));
+		}
+	}
+	
+	/**
+	 * Returns one page of the GeoLocations within the area given by applying the
+	 * parameters constraints, ordered by nid. The area is looked up in the spatial
+	 * index rather than the table, so the cost depends on the number of markers in
+	 * the area and not on the size of the cache.
+	 * 
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @param afterNid the nid of the last GeoLocation of the previous page, or
+	 * Integer.MIN_VALUE for the first page.
+	 * @param limit the page size.
+	 * @return at most limit GeoLocations. A page shorter than limit is the last one.
+	 */
+	static List<GeoLocation> getAnnotationMarkers(int maxLat, int maxLong, 
+			int minLat, int minLong, int afterNid, int limit) {
+		return getMarkerIndex().queryPage(maxLat, maxLong, minLat, minLong, afterNid, limit);
 	}
 	
 	/**
-	 * Returns all reference points.
+	 * Returns all GeoLocations within the area given by applying the parameters
+	 * constraints, in no particular order. Like the pages, they are looked up
+	 * in the spatial index.
+	 * 
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @return the GeoLocations inside the area.
+	 */
+	static List<GeoLocation> getAnnotationMarkers(int maxLat, int maxLong, 
+			int minLat, int minLong) {
+		return getMarkerIndex().query(maxLat, maxLong, minLat, minLong, -1);
+	}
+	
+	/**
+	 * Returns all reference points, the current one first.
 	 * 
 	 * @return
 	 */
 	static List<ReferencePoint> getAllReferencePoints() {
-		Cursor c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
-				null,null,null,null,null,
+		Cursor c = dbHelper.getReaderDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
+				RowMapper.REFERENCE_POINT.getProjection(),
+				null,null,null,null,
 				"current DESC");
-		
-		List<ReferencePoint> glList = new ArrayList<ReferencePoint>();
-		if(c.moveToPosition(0)) {
-			do {
-				glList.add(new ReferencePoint(c.getInt(c.getColumnIndex("_id")),
-						new GeoPoint(c.getInt(c.getColumnIndex("latitude")),
-						c.getInt(c.getColumnIndex("longitude"))), 
-						c.getString(c.getColumnIndex("name")).equals("physical_position") ? 
-										"My location" : c.getString(c.getColumnIndex("name"))));
-			} while(c.moveToNext());
-		}
-		c.close();
-		
-		return glList;
+		return RowMapper.REFERENCE_POINT.mapAll(c);
 	}
 	
 	/**
-	 * Sets the reference point with the specified id as the current reference point.
-	 * The last current reference point is also cleared. Sending a negative id will set the physical location as
-	 * current location (calling with the id of the physical location also works).
+	 * Marks the reference point with the specified id as the current reference point,
+	 * and clears the mark from all others, in a single update.
 	 * 
 	 * @param id the id of the reference point that is desired as the current reference point.
-	 * @return the new current reference point if it existed in the database, and the old one
-	 * if not.
 	 */
-	static ReferencePoint setCurrentReferencePoint(int id) {
-		Cursor c;
-		if(id < 0) {
-			c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
-					null,
-					"name = 'physical_position'",
-					null,null,null,null);
-		} else {
-			c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
-					null,
-					"_id = " + id,
-					null,null,null,null);
-		}
-		if(c.moveToFirst()) {
-			resetCurrentRefPoint();
-			ContentValues values = new ContentValues();
-			values.put("current", 1);
-			if(id < 0) {
-				dbHelper.getWritableDatabase().update(DatabaseHelper.REFERENCE_POINT_TABLE,
-						values,
-						"name = 'physical_position'",
-						null);
-			} else {
-				dbHelper.getWritableDatabase().update(DatabaseHelper.REFERENCE_POINT_TABLE,
-						values,
-						"_id = " + id,
-						null);
-			}
+	static void setCurrentReferencePoint(int id) {
+		dbHelper.getWritableDatabase().execSQL("UPDATE " + DatabaseHelper.REFERENCE_POINT_TABLE
+				+ " SET current = (_id = ?)",
+				new Object[] {id});
+	}
+	
+	/**
+	 * Returns the id of the reference point with the given name.
+	 * 
+	 * @param name the name of the reference point, as stored.
+	 * @return the id, or -1 if there is no such reference point.
+	 */
+	static int findReferencePoint(String name) {
+		Cursor c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
+				ID_PROJECTION,
+				"name = ?",
+				new String[] {name},
+				null,null,null);
+		try {
+			return (c.moveToFirst() ? c.getInt(0) : -1);
+		} finally {
+			c.close();
 		}
-		c.close();
-		c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
-				null,
-				"current = 1",
-				null,null,null,null);
-		c.moveToFirst();
-		ReferencePoint result = new ReferencePoint(c.getInt(c.getColumnIndex("_id")),
-						new GeoPoint(
-								c.getInt(c.getColumnIndex("latitude")),
-								c.getInt(c.getColumnIndex("longitude"))), 
-			(id < 0 ? "My location" : c.getString(c.getColumnIndex("name"))));
-		c.close();
-		return result;
 	}
-
-	private static void resetCurrentRefPoint() {
+	
+	/**
+	 * Adds a reference point to the database.
+	 * 
+	 * @param gp the geographical location of the reference point.
+	 * @param name the name of the reference point.
+	 * @return the id of the new reference point, or -1 if it could not be added.
+	 */
+	static int addReferencePoint(GeoPoint gp, String name) {
 		ContentValues values = new ContentValues();
 		values.put("current", 0);
-		dbHelper.getWritableDatabase().update(DatabaseHelper.REFERENCE_POINT_TABLE,
-				values,
-				"current = 1",
-				null);
+		values.put("name", name);
+		values.put("latitude", gp.getLatitudeE6());
+		values.put("longitude", gp.getLongitudeE6());
+		return (int) dbHelper.getWritableDatabase().insert(DatabaseHelper.REFERENCE_POINT_TABLE,
+				null,
+				values);
 	}
 	
 	/**
-	 * Adds a reference point to the database. If the point already exists, nothing is done.
+	 * Adds a reference point with the given id to the database.
 	 * 
+	 * @param id the id of the new reference point, not used by any other.
 	 * @param gp the geographical location of the reference point.
 	 * @param name the name of the reference point.
+	 * @return true if the reference point was added.
 	 */
-	static void addReferencePoint(GeoPoint gp, String name) {
-		String whereName = "name = '"+name+"'";
-		Cursor c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
+	static boolean addReferencePoint(int id, GeoPoint gp, String name) {
+		ContentValues values = new ContentValues();
+		values.put("_id", id);
+		values.put("current", 0);
+		values.put("name", name);
+		values.put("latitude", gp.getLatitudeE6());
+		values.put("longitude", gp.getLongitudeE6());
+		return dbHelper.getWritableDatabase().insert(DatabaseHelper.REFERENCE_POINT_TABLE,
 				null,
-				whereName,
-				null,null,null,null);
-		if(!c.moveToFirst()) {
-			ContentValues values = new ContentValues();
-			values.put("current", 0);
-			values.put("name", name);
-			values.put("latitude", gp.getLatitudeE6());
-			values.put("longitude", gp.getLongitudeE6());
-			dbHelper.getWritableDatabase().insert(DatabaseHelper.REFERENCE_POINT_TABLE,
-					null,
-					values);
-		}
-		c.close();
+				values) >= 0;
 	}
 	
 	/**
+	 * Moves the reference point with the given id, e.g. the physical position
+	 * of the phone.
 	 * 
-	 * @param gp
+	 * @param id the id of the reference point.
+	 * @param gp the new location of the reference point.
 	 */
-	static void updateCurrentLocation(GeoPoint gp) {
+	static void updateReferencePointLocation(int id, GeoPoint gp) {
 		ContentValues values = new ContentValues();
 		values.put("latitude", gp.getLatitudeE6());
 		values.put("longitude", gp.getLongitudeE6());
 		dbHelper.getWritableDatabase().update(DatabaseHelper.REFERENCE_POINT_TABLE,
 				values,
-				"name = 'physical_location'",
-				null);
+				"_id = ?",
+				new String[] {Integer.toString(id)});
 	}
 	
 	/**
@@ -265,17 +477,10 @@ public class DatabaseConnectionLayer {
 		dbHelper.getWritableDatabase().delete(DatabaseHelper.REFERENCE_POINT_TABLE,
 				"_id = " + id,
 				null);
-		Cursor c = dbHelper.getReadableDatabase().query(DatabaseHelper.REFERENCE_POINT_TABLE,
-				null,
-				"current = 1",
-				null,null,null,null);
-		if(!c.moveToFirst()) {
-			DataProvider.getDataProvider(null).setCurrentReferencePoint(-1);
-			c.close();
-		}
 	}
 	
 	/**
+	 * Stores a new comment on the annotation with the given nid.
 	 * 
 	 * @param nid
 	 * @param author
@@ -288,70 +493,554 @@ public class DatabaseConnectionLayer {
 		values.put("comment", commentText);
 		values.put("author", author);
 		values.put("title", title);
-		values.put("added_date", "N/A");
+		values.put("added_date", System.currentTimeMillis());
 		
-		dbHelper.getWritableDatabase().insert(DatabaseHelper.COMMENT_TABLE,
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		db.insert(DatabaseHelper.COMMENT_TABLE,
 				null,
 				values);
+		Object[] args = {nid};
+		db.execSQL(DELETE_SEARCH_TEXT, args);
+		db.execSQL(INSERT_SEARCH_TEXT, args);
 	}
 	
 	/**
+	 * Stores the annotation, its location and its comments in one transaction. Rows
+	 * already stored for the same nid are replaced. Stored comments are only
+	 * replaced if the annotation comes with comments, as the server's copy of an
+	 * annotation has none.
 	 * 
 	 * @param a
-	 * @return
+	 * @param fetchDate when the annotation was fetched from the server, in milliseconds.
+	 * @return true if the annotation was stored, false if an error occured.
 	 */
-	static boolean storeAnnotation(Annotation a) {
-		ContentValues values = new ContentValues();
+	static boolean storeAnnotation(Annotation a, long fetchDate) {
+		return storeAnnotations(Collections.singletonList(a), fetchDate);
+	}
+	
+	/**
+	 * Stores the annotations, their locations and their comments in one transaction.
+	 * Rows already stored for the same nids are replaced, comments only by an
+	 * annotation that comes with comments.
+	 * 
+	 * @param annotations
+	 * @param fetchDate when the annotations were fetched from the server, in milliseconds.
+	 * @return true if the annotations were stored, false if an error occured.
+	 */
+	static boolean storeAnnotations(List<Annotation> annotations, long fetchDate) {
 		SQLiteDatabase db = dbHelper.getWritableDatabase();
-		values.put("nid", a.getId());
-		values.put("body", a.getBody());
-		values.put("author", a.getAuthor());
-		db.insert(DatabaseHelper.ANNOTATION_TABLE,
-				null,
-				values);
-		
-		values.clear();
-		values.put("nid", a.getId());
-		values.put("latitude", a.getGeoLocation().getLocation().getLatitudeE6());
-		values.put("longitude", a.getGeoLocation().getLocation().getLongitudeE6());
-		values.put("title", a.getGeoLocation().getTitle());
-		db.insert(DatabaseHelper.GEOLOCATION_TABLE,
-				null,
-				values);
-		
-		for(Comment c : a.getComments()) {
-			values.clear();
-			values.put("nid", a.getId());
-			values.put("comment", c.getCommentText());
-			values.put("author", c.getAuthor());
-			values.put("title", c.getTitle());
-			values.put("added_date", c.getAddedDate().toString());
-			db.insert(DatabaseHelper.COMMENT_TABLE,
-					null,
-					values);
+		int rows = 0;
+		AnnotationInserter inserter = null;
+		db.beginTransaction();
+		try {
+			inserter = new AnnotationInserter(db);
+			for(Annotation a : annotations) {
+				rows += inserter.insert(a, fetchDate);
+			}
+			inserter.finish();
+			db.setTransactionSuccessful();
+		} catch(SQLException e) {
+			Log.w(LOG_TAG, "Could not store " + annotations.size() + " annotations", e);
+			return false;
+		} finally {
+			db.endTransaction();
+			if(inserter != null) {
+				inserter.close();
+			}
 		}
+		final List<Annotation> stored = annotations;
+		DatabaseWriter.afterCommit(new Runnable() {
+			public void run() {
+				for(Annotation a : stored) {
+					indexGeoLocation(a.getGeoLocation());
+				}
+			}
+		});
+		DatabaseWriter.rowsWritten(rows);
 		return true;
 	}
 	
 	/**
+	 * Writes the stored annotations within the area, with their comments, as a
+	 * region pack. The fetch date of the pack is that of its oldest annotation.
+	 * 
+	 * @param area the area as max latitude, max longitude, min latitude and min
+	 * longitude, in microdegrees.
+	 * @param out where the pack is written.
+	 * @return the number of annotations written.
+	 * @throws IOException if the pack could not be written.
+	 */
+	static int exportRegionPack(int[] area, OutputStream out) throws IOException {
+		SQLiteDatabase db = dbHelper.getReaderDatabase();
+		String[] args = {Integer.toString(area[0]), Integer.toString(area[1]),
+						 Integer.toString(area[2]), Integer.toString(area[3])};
+		long fetchDate = 0;
+		Cursor c = db.rawQuery("SELECT MIN(a.fetched_date) " + FROM_AREA_ANNOTATIONS, args);
+		try {
+			if(c.moveToFirst()) {
+				fetchDate = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		
+		Cursor annotations = db.rawQuery("SELECT g.nid, g.latitude, g.longitude, g.title, "
+				+ "a.body, a.author " + FROM_AREA_ANNOTATIONS + " ORDER BY g.nid", args);
+		Cursor comments = null;
+		try {
+			comments = db.rawQuery("SELECT c.nid, " + COMMENT_COLUMNS + " FROM "
+					+ DatabaseHelper.COMMENT_TABLE + " c JOIN " + DatabaseHelper.GEOLOCATION_TABLE
+					+ " g ON g.nid = c.nid WHERE " + IN_AREA + " ORDER BY c.nid, c.added_date", args);
+			int count = annotations.getCount();
+			RegionPack.Writer pack = new RegionPack.Writer(out, area, fetchDate, count);
+			//Both cursors are ordered by nid, so the comments of each annotation
+			//are the next run of the comment cursor.
+			boolean moreComments = comments.moveToFirst();
+			while(annotations.moveToNext()) {
+				int nid = annotations.getInt(0);
+				List<Comment> list = new ArrayList<Comment>();
+				while(moreComments && comments.getInt(0) <= nid) {
+					if(comments.getInt(0) == nid) {
+						list.add(new Comment(comments.getString(1), comments.getString(2),
+								comments.getString(3), new Date(comments.getLong(4))));
+					}
+					moreComments = comments.moveToNext();
+				}
+				pack.write(new Annotation(new GeoLocation(nid, annotations.getInt(1),
+						annotations.getInt(2), annotations.getString(3)),
+						annotations.getString(4), annotations.getString(5), list));
+			}
+			pack.finish();
+			return count;
+		} finally {
+			annotations.close();
+			if(comments != null) {
+				comments.close();
+			}
+		}
+	}
+	
+	/**
+	 * Stores every annotation of a region pack in one transaction, and records
+	 * its area as fetched at the date of the pack. Annotations stored after the
+	 * pack was made are kept rather than replaced by the older copy. If the pack
+	 * can not be read to the end, nothing is stored.
+	 * 
+	 * @param pack the pack, with its header read.
+	 * @return the GeoLocations of the annotations stored.
+	 * @throws IOException if the pack is truncated or corrupt.
+	 */
+	static List<GeoLocation> importRegionPack(RegionPack.Reader pack) throws IOException {
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		long fetchDate = pack.getFetchDate();
+		int rows = 0;
+		final List<GeoLocation> stored = new ArrayList<GeoLocation>(pack.getCount());
+		AnnotationInserter inserter = null;
+		SQLiteStatement newer = null;
+		db.beginTransaction();
+		try {
+			inserter = new AnnotationInserter(db);
+			newer = db.compileStatement("SELECT COUNT(*) FROM " + DatabaseHelper.ANNOTATION_TABLE
+					+ " WHERE nid = ? AND fetched_date > ?");
+			newer.bindLong(2, fetchDate);
+			Annotation a;
+			while((a = pack.next()) != null) {
+				newer.bindLong(1, a.getId());
+				if(newer.simpleQueryForLong() == 0) {
+					rows += inserter.insert(a, fetchDate);
+					stored.add(a.getGeoLocation());
+				}
+			}
+			inserter.finish();
+			int[] area = pack.getArea();
+			storeFetchedRegion(area[0], area[1], area[2], area[3], fetchDate, 0);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			if(inserter != null) {
+				inserter.close();
+			}
+			close(newer);
+		}
+		DatabaseWriter.afterCommit(new Runnable() {
+			public void run() {
+				for(GeoLocation gl : stored) {
+					indexGeoLocation(gl);
+				}
+			}
+		});
+		DatabaseWriter.rowsWritten(rows);
+		return stored;
+	}
+	
+	/**
+	 * Stores the GeoLocations in one transaction. Rows already stored for the same nid
+	 * are replaced.
 	 * 
 	 * @param glList
-	 * @return
+	 * @param fetchDate when the GeoLocations were fetched from the server, in milliseconds.
+	 * @return true if the GeoLocations were stored, false if an error occured.
 	 */
-	static boolean storeGeoLocations(List<GeoLocation> glList) {
-		ContentValues values = new ContentValues();
+	static boolean storeGeoLocations(final List<GeoLocation> glList, long fetchDate) {
 		SQLiteDatabase db = dbHelper.getWritableDatabase();
-		
-		for(GeoLocation gl : glList) {
-			values.clear();
-			values.put("nid", gl.getId());
-			values.put("latitude", gl.getLocation().getLatitudeE6());
-			values.put("longitude", gl.getLocation().getLongitudeE6());
-			values.put("title", gl.getTitle());
-			db.insert(DatabaseHelper.GEOLOCATION_TABLE,
-					null,
-					values);
+		SQLiteStatement insert = null;
+		List<Integer> nids = new ArrayList<Integer>(glList.size());
+		db.beginTransaction();
+		try {
+			insert = db.compileStatement(INSERT_GEOLOCATION);
+			for(GeoLocation gl : glList) {
+				bindGeoLocation(insert, gl, fetchDate);
+				insert.executeInsert();
+				nids.add(gl.getId());
+			}
+			updateSearchText(db, nids);
+			db.setTransactionSuccessful();
+		} catch(SQLException e) {
+			Log.w(LOG_TAG, "Could not store " + glList.size() + " geolocations", e);
+			return false;
+		} finally {
+			db.endTransaction();
+			close(insert);
+		}
+		DatabaseWriter.afterCommit(new Runnable() {
+			public void run() {
+				for(GeoLocation gl : glList) {
+					indexGeoLocation(gl);
+				}
+			}
+		});
+		DatabaseWriter.rowsWritten(glList.size());
+		return true;
+	}
+	
+	/**
+	 * Applies a delta between the stored and the fetched markers of an area in
+	 * one transaction. Added and changed GeoLocations are stored, and removed
+	 * ones are deleted. A removed marker may only have moved out of the area,
+	 * so its annotation and comments are kept, and show again once it is
+	 * fetched elsewhere; eviction deletes them if it is not. Unchanged rows are
+	 * not touched.
+	 * 
+	 * @param delta the delta, computed against what is stored.
+	 * @param fetchDate when the GeoLocations were fetched from the server, in milliseconds.
+	 * @return true if the delta was applied, false if an error occured.
+	 */
+	static boolean storeMarkerDelta(final MarkerDelta delta, long fetchDate) {
+		if(delta.isEmpty()) {
+			return true;
+		}
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		SQLiteStatement insert = null;
+		List<Integer> nids = new ArrayList<Integer>(delta.getAdded().size() + delta.getChanged().size());
+		db.beginTransaction();
+		try {
+			insert = db.compileStatement(INSERT_GEOLOCATION);
+			for(GeoLocation gl : delta.getAdded()) {
+				bindGeoLocation(insert, gl, fetchDate);
+				insert.executeInsert();
+				nids.add(gl.getId());
+			}
+			for(GeoLocation gl : delta.getChanged()) {
+				bindGeoLocation(insert, gl, fetchDate);
+				insert.executeInsert();
+				nids.add(gl.getId());
+			}
+			updateSearchText(db, nids);
+			List<Integer> removed = new ArrayList<Integer>(delta.getRemoved().size());
+			for(GeoLocation gl : delta.getRemoved()) {
+				removed.add(gl.getId());
+			}
+			for(int from = 0; from < removed.size(); from += IN_LIST_SIZE) {
+				db.execSQL("DELETE FROM " + DatabaseHelper.GEOLOCATION_TABLE + " WHERE nid IN "
+						+ toInList(removed.subList(from, Math.min(removed.size(), from + IN_LIST_SIZE))));
+			}
+			db.setTransactionSuccessful();
+		} catch(SQLException e) {
+			Log.w(LOG_TAG, "Could not store " + delta, e);
+			return false;
+		} finally {
+			db.endTransaction();
+			close(insert);
 		}
+		DatabaseWriter.afterCommit(new Runnable() {
+			public void run() {
+				for(GeoLocation gl : delta.getAdded()) {
+					indexGeoLocation(gl);
+				}
+				for(GeoLocation gl : delta.getChanged()) {
+					indexGeoLocation(gl);
+				}
+				for(GeoLocation gl : delta.getRemoved()) {
+					unindexGeoLocation(gl.getId());
+				}
+			}
+		});
+		DatabaseWriter.rowsWritten(delta.getAdded().size() + delta.getChanged().size()
+				+ delta.getRemoved().size());
 		return true;
 	}
+	
+	//Replaces the search text of the nodes with what is now stored for them,
+	//in one statement per few hundred nodes rather than two per node. FTS
+	//tables have no unique constraint to replace on, so the rows are deleted
+	//first.
+	private static void updateSearchText(SQLiteDatabase db, List<Integer> nids) {
+		for(int from = 0; from < nids.size(); from += IN_LIST_SIZE) {
+			String in = toInList(nids.subList(from, Math.min(nids.size(), from + IN_LIST_SIZE)));
+			db.execSQL("DELETE FROM " + DatabaseHelper.SEARCH_TABLE + " WHERE docid IN " + in);
+			db.execSQL("INSERT INTO " + DatabaseHelper.SEARCH_TABLE + " (docid, title, body, comments) "
+					+ DatabaseHelper.SELECT_SEARCH_TEXT + " WHERE g.nid IN " + in);
+		}
+	}
+	
+	//Writes the nids as an SQL list, e.g. (1,2,3). They are numbers, so they
+	//can go into the statement as they are.
+	private static String toInList(List<Integer> nids) {
+		StringBuilder in = new StringBuilder(nids.size() * 8);
+		in.append('(');
+		for(int i = 0; i < nids.size(); i++) {
+			if(i > 0) {
+				in.append(',');
+			}
+			in.append(nids.get(i).intValue());
+		}
+		return in.append(')').toString();
+	}
+	
+	/**
+	 * Records when markers were last used. A date older than the one already
+	 * stored for a marker is ignored.
+	 * 
+	 * @param accessDates the access dates in milliseconds, by nid.
+	 */
+	static void storeAccessDates(Map<Integer, Long> accessDates) {
+		SQLiteStatement update = dbHelper.getWritableDatabase().compileStatement(UPDATE_ACCESS_DATE);
+		try {
+			for(Map.Entry<Integer, Long> e : accessDates.entrySet()) {
+				update.bindLong(1, e.getValue());
+				update.bindLong(2, e.getKey());
+				update.bindLong(3, e.getValue());
+				update.execute();
+			}
+		} finally {
+			update.close();
+		}
+	}
+	
+	/**
+	 * @return the number of stored GeoLocations.
+	 */
+	static long countGeoLocations() {
+		return DatabaseUtils.queryNumEntries(dbHelper.getWritableDatabase(),
+				DatabaseHelper.GEOLOCATION_TABLE);
+	}
+	
+	/**
+	 * @return the size of the database file, less its free pages, in bytes.
+	 */
+	static long getUsedBytes() {
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		return (pragma(db, "page_count") - pragma(db, "freelist_count")) * pragma(db, "page_size");
+	}
+	
+	/**
+	 * @return the share of the pages of the database file that are free, between 0 and 1.
+	 */
+	static float getFreeRatio() {
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		long pages = pragma(db, "page_count");
+		return (pages == 0 ? 0 : (float) pragma(db, "freelist_count") / pages);
+	}
+	
+	/**
+	 * Removes the least recently used markers, with their annotations, comments and
+	 * search text. Fetched areas containing a removed marker are forgotten, so that
+	 * the area is fetched again the next time it is shown. The markers leave
+	 * the spatial index once the transaction is committed. Annotations and
+	 * comments kept for markers that left their area are removed as well.
+	 * 
+	 * @param count the number of markers to remove.
+	 * @return the nids of the removed markers.
+	 */
+	static List<Integer> evictLeastRecentlyAccessed(int count) {
+		SQLiteDatabase db = dbHelper.getWritableDatabase();
+		final List<Integer> evicted = new ArrayList<Integer>(count);
+		List<int[]> positions = new ArrayList<int[]>(count);
+		Cursor c = db.rawQuery(SELECT_LEAST_RECENTLY_ACCESSED, new String[] {Integer.toString(count)});
+		try {
+			while(c.moveToNext()) {
+				evicted.add(c.getInt(0));
+				positions.add(new int[] {c.getInt(1), c.getInt(2)});
+			}
+		} finally {
+			c.close();
+		}
+		
+		deleteNodes(db, evicted);
+		deleteFetchedRegionsContaining(db, positions);
+		deleteWithoutGeoLocation(db);
+		DatabaseWriter.afterCommit(new Runnable() {
+			public void run() {
+				for(int nid : evicted) {
+					unindexGeoLocation(nid);
+				}
+			}
+		});
+		return evicted;
+	}
+	
+	//Deletes the annotations, comments and search text of nodes that no longer
+	//have a marker.
+	private static void deleteWithoutGeoLocation(SQLiteDatabase db) {
+		String markers = "(SELECT nid FROM " + DatabaseHelper.GEOLOCATION_TABLE + ")";
+		db.execSQL("DELETE FROM " + DatabaseHelper.ANNOTATION_TABLE + " WHERE nid NOT IN " + markers);
+		db.execSQL("DELETE FROM " + DatabaseHelper.COMMENT_TABLE + " WHERE nid NOT IN " + markers);
+		db.execSQL("DELETE FROM " + DatabaseHelper.SEARCH_TABLE + " WHERE docid NOT IN " + markers);
+	}
+	
+	//Forgets the fetched areas containing any of the positions. There are few
+	//areas, as storeFetchedRegion drops those a newer one covers, so they are
+	//read once and matched here rather than with a range delete per position.
+	private static void deleteFetchedRegionsContaining(SQLiteDatabase db, List<int[]> positions) {
+		List<Integer> ids = new ArrayList<Integer>();
+		Cursor c = db.rawQuery("SELECT _id, max_lat, max_long, min_lat, min_long FROM "
+				+ DatabaseHelper.FETCHED_REGION_TABLE, null);
+		try {
+			while(c.moveToNext()) {
+				int maxLat = c.getInt(1);
+				int maxLong = c.getInt(2);
+				int minLat = c.getInt(3);
+				int minLong = c.getInt(4);
+				for(int[] p : positions) {
+					if(p[0] < maxLat && p[1] < maxLong && p[0] > minLat && p[1] > minLong) {
+						ids.add(c.getInt(0));
+						break;
+					}
+				}
+			}
+		} finally {
+			c.close();
+		}
+		for(int from = 0; from < ids.size(); from += IN_LIST_SIZE) {
+			db.execSQL("DELETE FROM " + DatabaseHelper.FETCHED_REGION_TABLE + " WHERE _id IN "
+					+ toInList(ids.subList(from, Math.min(ids.size(), from + IN_LIST_SIZE))));
+		}
+	}
+	
+	/**
+	 * Rebuilds the database file without its free pages. Must not be called
+	 * inside a transaction.
+	 */
+	static void vacuum() {
+		dbHelper.getWritableDatabase().execSQL("VACUUM");
+	}
+	
+	//Deletes everything stored about the nodes, a few hundred at a time, but
+	//leaves the spatial index alone.
+	private static void deleteNodes(SQLiteDatabase db, List<Integer> nids) {
+		for(int from = 0; from < nids.size(); from += IN_LIST_SIZE) {
+			String in = toInList(nids.subList(from, Math.min(nids.size(), from + IN_LIST_SIZE)));
+			db.execSQL("DELETE FROM " + DatabaseHelper.GEOLOCATION_TABLE + " WHERE nid IN " + in);
+			db.execSQL("DELETE FROM " + DatabaseHelper.ANNOTATION_TABLE + " WHERE nid IN " + in);
+			db.execSQL("DELETE FROM " + DatabaseHelper.COMMENT_TABLE + " WHERE nid IN " + in);
+			db.execSQL("DELETE FROM " + DatabaseHelper.SEARCH_TABLE + " WHERE docid IN " + in);
+		}
+	}
+	
+	private static long pragma(SQLiteDatabase db, String name) {
+		Cursor c = db.rawQuery("PRAGMA " + name, null);
+		try {
+			return (c.moveToFirst() ? c.getLong(0) : 0);
+		} finally {
+			c.close();
+		}
+	}
+	
+	//The statements storing an annotation, compiled once for a whole batch.
+	//The search text of the batch is written by finish, once its rows are in.
+	private static class AnnotationInserter {
+		private final SQLiteDatabase db;
+		private final SQLiteStatement annotationInsert;
+		private final SQLiteStatement geoLocationInsert;
+		private final SQLiteStatement commentDelete;
+		private final SQLiteStatement commentInsert;
+		private final List<Integer> nids = new ArrayList<Integer>();
+		
+		AnnotationInserter(SQLiteDatabase db) {
+			this.db = db;
+			annotationInsert = db.compileStatement(INSERT_ANNOTATION);
+			geoLocationInsert = db.compileStatement(INSERT_GEOLOCATION);
+			commentDelete = db.compileStatement(DELETE_COMMENTS);
+			commentInsert = db.compileStatement(INSERT_COMMENT);
+		}
+		
+		//Returns the number of rows written.
+		int insert(Annotation a, long fetchDate) {
+			int rows = 2;
+			annotationInsert.bindLong(1, a.getId());
+			bindString(annotationInsert, 2, a.getBody());
+			bindString(annotationInsert, 3, a.getAuthor());
+			annotationInsert.bindLong(4, fetchDate);
+			annotationInsert.executeInsert();
+			
+			bindGeoLocation(geoLocationInsert, a.getGeoLocation(), fetchDate);
+			geoLocationInsert.executeInsert();
+			
+			//The comments of an annotation come as a whole, so they replace the
+			//stored ones. Comments have no key of their own to replace them by.
+			if(a.getComments() != null && !a.getComments().isEmpty()) {
+				commentDelete.bindLong(1, a.getId());
+				commentDelete.execute();
+				for(Comment c : a.getComments()) {
+					commentInsert.bindLong(1, a.getId());
+					bindString(commentInsert, 2, c.getCommentText());
+					bindString(commentInsert, 3, c.getAuthor());
+					bindString(commentInsert, 4, c.getTitle());
+					commentInsert.bindLong(5, c.getAddedDate().getTime());
+					commentInsert.executeInsert();
+					rows++;
+				}
+			}
+			
+			nids.add(a.getId());
+			return rows;
+		}
+		
+		//Writes the search text of every annotation inserted so far.
+		void finish() {
+			updateSearchText(db, nids);
+			nids.clear();
+		}
+		
+		void close() {
+			annotationInsert.close();
+			geoLocationInsert.close();
+			commentDelete.close();
+			commentInsert.close();
+		}
+	}
+	
+	private static void bindGeoLocation(SQLiteStatement s, GeoLocation gl, long fetchDate) {
+		s.bindLong(1, gl.getId());
+		s.bindLong(2, gl.getLocation().getLatitudeE6());
+		s.bindLong(3, gl.getLocation().getLongitudeE6());
+		bindString(s, 4, gl.getTitle());
+		s.bindLong(5, fetchDate);
+		s.bindLong(6, fetchDate);
+	}
+	
+	//SQLiteStatement does not accept null strings, they have to be bound as null.
+	private static void bindString(SQLiteStatement s, int index, String value) {
+		if(value == null) {
+			s.bindNull(index);
+		} else {
+			s.bindString(index, value);
+		}
+	}
+	
+	private static void close(SQLiteStatement s) {
+		if(s != null) {
+			s.close();
+		}
+	}
 }
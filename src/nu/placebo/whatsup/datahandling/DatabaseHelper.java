@@ -1,62 +1,334 @@
 package nu.placebo.whatsup.datahandling;
 
+import java.lang.reflect.Method;
+
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
 		
 	//-------------------- Constants -----------------
 	static final String DATABASE_NAME = "whatsup.db";
-	static final int DATABASE_VERSION = 2;
+	static final int DATABASE_VERSION = 8;
 	static final String GEOLOCATION_TABLE = "geolocations";
 	static final String ANNOTATION_TABLE = "anntations";
 	static final String COMMENT_TABLE = "comments";
 	static final String REFERENCE_POINT_TABLE = "reference_points";
+	static final String SEARCH_TABLE = "search";
+	static final String FETCHED_REGION_TABLE = "fetched_regions";
 	//------------------------------------------------
+	
+	/**
+	 * Selects the text of each node as it is put into the search table: the
+	 * docid is the nid, and the comments are concatenated into one column.
+	 */
+	static final String SELECT_SEARCH_TEXT = "SELECT g.nid, g.title, a.body, "
+			+ "(SELECT group_concat(c.comment, ' ') FROM " + COMMENT_TABLE + " c WHERE c.nid = g.nid) "
+			+ "FROM " + GEOLOCATION_TABLE + " g LEFT JOIN " + ANNOTATION_TABLE + " a ON a.nid = g.nid";
+	
+	/**
+	 * The schema changes since version 2, in order. Each migration takes the
+	 * database from its version to the next one, without losing any rows the
+	 * new schema can still hold. Bumping DATABASE_VERSION means adding one here.
+	 */
+	private static final Migration[] MIGRATIONS = {
+		new Migration(2) {
+			//Version 2 inserted a new row every time a node was fetched. Keep
+			//the most recent row of each node before adding the constraints.
+			//Comments were only ever added locally, never refetched, so they
+			//have no such duplicates and are all kept.
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("DELETE FROM " + GEOLOCATION_TABLE + " WHERE _id NOT IN "
+						+ "(SELECT MAX(_id) FROM " + GEOLOCATION_TABLE + " GROUP BY nid);");
+				db.execSQL("DELETE FROM " + ANNOTATION_TABLE + " WHERE _id NOT IN "
+						+ "(SELECT MAX(_id) FROM " + ANNOTATION_TABLE + " GROUP BY nid);");
+				createUniqueIndices(db);
+				createCommentIndex(db);
+			}
+		},
+		new Migration(3) {
+			//The nid of comments was stored as REAL, and the dates as strings.
+			//SQLite cannot change the type of a column, so the table is rebuilt.
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("DROP INDEX IF EXISTS " + COMMENT_TABLE + "_nid;");
+				db.execSQL("ALTER TABLE " + COMMENT_TABLE + " RENAME TO "
+						+ COMMENT_TABLE + "_old;");
+				createCommentTable(db);
+				db.execSQL("INSERT OR REPLACE INTO " + COMMENT_TABLE
+						+ " (nid, comment, author, title, added_date) "
+						+ "SELECT CAST(nid AS INTEGER), comment, author, title, "
+						+ "CASE WHEN typeof(added_date) = 'integer' THEN added_date ELSE 0 END "
+						+ "FROM " + COMMENT_TABLE + "_old;");
+				db.execSQL("DROP TABLE " + COMMENT_TABLE + "_old;");
+				createCommentIndex(db);
+			}
+		},
+		new Migration(4) {
+			//Adds the full-text index, filled with what is already cached.
+			void migrate(SQLiteDatabase db) {
+				createSearchTable(db);
+				db.execSQL("INSERT INTO " + SEARCH_TABLE + " (docid, title, body, comments) "
+						+ SELECT_SEARCH_TEXT + ";");
+			}
+		},
+		new Migration(5) {
+			//Records when rows and areas were fetched. Rows cached before that
+			//count as never fetched, so they are refreshed the first time.
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + GEOLOCATION_TABLE
+						+ " ADD COLUMN fetched_date INTEGER NOT NULL DEFAULT 0;");
+				db.execSQL("ALTER TABLE " + ANNOTATION_TABLE
+						+ " ADD COLUMN fetched_date INTEGER NOT NULL DEFAULT 0;");
+				createFetchedRegionTable(db);
+			}
+		},
+		new Migration(6) {
+			//Records when each marker was last used, so the least recently used
+			//ones can be evicted. Until they are used, the fetch date stands in.
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + GEOLOCATION_TABLE
+						+ " ADD COLUMN accessed_date INTEGER NOT NULL DEFAULT 0;");
+				db.execSQL("UPDATE " + GEOLOCATION_TABLE + " SET accessed_date = fetched_date;");
+				createAccessIndex(db);
+			}
+		},
+		new Migration(7) {
+			//Comments were unique by nid, author, title and date, which merged
+			//distinct comments that happened to share them. The server gives
+			//no comment id to key on, so the constraint is dropped.
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("DROP INDEX IF EXISTS " + COMMENT_TABLE + "_nid;");
+				createCommentIndex(db);
+			}
+		}
+	};
+
+	private static final String LOG_TAG = "WhatsUp";
+
+	//The first version whose SQLite has write-ahead logging, Honeycomb.
+	private static final int WRITE_AHEAD_LOG_SDK = 11;
+
+	private SQLiteDatabase reader;
+	private boolean writeAheadLog;
 
 	DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 	}
+	
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if(!db.isReadOnly()) {
+			writeAheadLog = enableWriteAheadLog(db);
+		}
+	}
+	
+	/**
+	 * Returns the connection to use for queries. With write-ahead logging, it is
+	 * a read-only connection separate from the one returned by
+	 * getWritableDatabase, so queries run while a write is in progress. Without
+	 * it, a second connection would fail with "database is locked" whenever a
+	 * write holds the lock, so queries share the writable connection instead.
+	 * 
+	 * @return the connection to use for queries.
+	 */
+	synchronized SQLiteDatabase getReaderDatabase() {
+		//Opening the writable database first creates or upgrades the file.
+		SQLiteDatabase db = getWritableDatabase();
+		if(!writeAheadLog) {
+			return db;
+		}
+		if(reader == null || !reader.isOpen()) {
+			reader = openReadOnly(db.getPath());
+		}
+		return reader;
+	}
+	
+	@Override
+	public synchronized void close() {
+		if(reader != null) {
+			reader.close();
+			reader = null;
+		}
+		super.close();
+	}
+	
+	/**
+	 * Switches the database to write-ahead logging, which lets readers on other
+	 * connections carry on while a transaction is being written. It is only
+	 * there from Honeycomb on; before that, SQLite is 3.6 and the database
+	 * keeps its rollback journal.
+	 * 
+	 * @param db a writable database, outside of any transaction.
+	 * @return true if the database now uses write-ahead logging.
+	 */
+	public static boolean enableWriteAheadLog(SQLiteDatabase db) {
+		if(Build.VERSION.SDK_INT < WRITE_AHEAD_LOG_SDK) {
+			return false;
+		}
+		boolean wal;
+		try {
+			//Built against a version without enableWriteAheadLogging.
+			Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+			wal = Boolean.TRUE.equals(enable.invoke(db));
+		} catch (Exception e) {
+			Log.w(LOG_TAG, "Could not enable write-ahead logging", e);
+			wal = false;
+		}
+		if(wal) {
+			//The log is synced at checkpoints, which is safe for a cache.
+			db.execSQL("PRAGMA synchronous=NORMAL");
+		}
+		return wal;
+	}
+	
+	/**
+	 * Opens a read-only connection to the database at the given path.
+	 * 
+	 * @param path the path of an existing database.
+	 * @return the new connection.
+	 */
+	public static SQLiteDatabase openReadOnly(String path) {
+		return SQLiteDatabase.openDatabase(path, null,
+				SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
+		createTables(db);
+	}
+	
+	private static void createTables(SQLiteDatabase db) {
 		db.execSQL("CREATE TABLE " + GEOLOCATION_TABLE + " ("
 				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
 				+ "nid INTEGER,"
 				+ "latitude INTEGER,"
 				+ "longitude INTEGER,"
-				+ "title TEXT"
+				+ "title TEXT,"
+				+ "fetched_date INTEGER NOT NULL DEFAULT 0,"
+				+ "accessed_date INTEGER NOT NULL DEFAULT 0"
 				+ ");");
 		db.execSQL("CREATE TABLE " + ANNOTATION_TABLE + " ("
 				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
 				+ "nid INTEGER,"
 				+ "body TEXT,"
-				+ "author TEXT"
+				+ "author TEXT,"
+				+ "fetched_date INTEGER NOT NULL DEFAULT 0"
+				+ ");");
+		createCommentTable(db);
+		db.execSQL("CREATE TABLE " + REFERENCE_POINT_TABLE + " ("
+				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "name TEXT,"
+				+ "latitude INTEGER,"
+				+ "longitude INTEGER,"
+				+ "current INTEGER"
 				+ ");");
+		createUniqueIndices(db);
+		createCommentIndex(db);
+		createAccessIndex(db);
+		createSearchTable(db);
+		createFetchedRegionTable(db);
+	}
+	
+	private static void createCommentTable(SQLiteDatabase db) {
 		db.execSQL("CREATE TABLE " + COMMENT_TABLE + " ("
 				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
-				+ "nid REAL," 
+				+ "nid INTEGER," 
 				+ "comment TEXT,"
 				+ "author TEXT,"
 				+ "title TEXT,"
 				+ "added_date INTEGER"
 				+ ");");
-		db.execSQL("CREATE TABLE " + REFERENCE_POINT_TABLE + " ("
+	}
+	
+	//Eviction takes the markers with the oldest access dates first.
+	private static void createAccessIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + GEOLOCATION_TABLE + "_accessed ON "
+				+ GEOLOCATION_TABLE + " (accessed_date);");
+	}
+	
+	//The full-text index over titles, bodies and comments. FTS3 is the version
+	//every Android release ships with.
+	private static void createSearchTable(SQLiteDatabase db) {
+		db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE
+				+ " USING fts3(title, body, comments);");
+	}
+	
+	//The areas whose markers have been fetched, and when. An area is kept
+	//until its markers are no longer trusted.
+	private static void createFetchedRegionTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + FETCHED_REGION_TABLE + " ("
 				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
-				+ "name TEXT,"
-				+ "latitude INTEGER,"
-				+ "longitude INTEGER,"
-				+ "current INTEGER"
+				+ "max_lat INTEGER,"
+				+ "max_long INTEGER,"
+				+ "min_lat INTEGER,"
+				+ "min_long INTEGER,"
+				+ "fetched_date INTEGER"
 				+ ");");
 	}
+	
+	//Cached rows are keyed by the node id, so that fetching the same node
+	//again replaces the old row instead of adding a new one.
+	private static void createUniqueIndices(SQLiteDatabase db) {
+		db.execSQL("CREATE UNIQUE INDEX " + GEOLOCATION_TABLE + "_nid ON "
+				+ GEOLOCATION_TABLE + " (nid);");
+		db.execSQL("CREATE UNIQUE INDEX " + ANNOTATION_TABLE + "_nid ON "
+				+ ANNOTATION_TABLE + " (nid);");
+	}
+	
+	//Comments are looked up by nid, which leads this index, and read in the
+	//order they were added. It is not unique, as two comments may well have
+	//the same author, title and date.
+	private static void createCommentIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + COMMENT_TABLE + "_nid ON "
+				+ COMMENT_TABLE + " (nid, added_date);");
+	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + GEOLOCATION_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + ANNOTATION_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + COMMENT_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + REFERENCE_POINT_TABLE);
-		onCreate(db);
+		upgrade(db, oldVersion);
+	}
+	
+	/**
+	 * Brings a database created at the given version up to the current schema by
+	 * running the migrations after it in order. Databases older than the first
+	 * migration are recreated, as their schema is not known.
+	 * 
+	 * @param db the database to upgrade. The caller is responsible for any
+	 * surrounding transaction and for setting the new version.
+	 * @param oldVersion the version the database is at.
+	 */
+	public static void upgrade(SQLiteDatabase db, int oldVersion) {
+		if(oldVersion < MIGRATIONS[0].fromVersion) {
+			db.execSQL("DROP TABLE IF EXISTS " + GEOLOCATION_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + ANNOTATION_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + COMMENT_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + REFERENCE_POINT_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + FETCHED_REGION_TABLE);
+			createTables(db);
+			return;
+		}
+		for(Migration m : MIGRATIONS) {
+			if(m.fromVersion >= oldVersion && m.fromVersion < DATABASE_VERSION) {
+				m.migrate(db);
+			}
+		}
+	}
+	
+	/**
+	 * A schema change from one version to the next.
+	 */
+	private static abstract class Migration {
+		final int fromVersion;
+		
+		Migration(int fromVersion) {
+			this.fromVersion = fromVersion;
+		}
+		
+		abstract void migrate(SQLiteDatabase db);
 	}
 }
@@ -0,0 +1,241 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Writes to the database on a single background thread, so that callers, and
+ * the UI thread in particular, never wait for SQLite.
+ *
+ * Writes are queued under a key. A write queued under a key that is already
+ * pending replaces the pending one, which lets e.g. a burst of location fixes
+ * collapse into the last one. The replacing write is moved to the end of the
+ * queue, so it still runs after everything queued before it, which it may
+ * depend on. Everything pending when the writer wakes up is committed in one
+ * transaction, in the order queued.
+ *
+ * Maintenance, such as VACUUM, can not run inside a transaction. It is queued
+ * separately and run on the same thread after the batch, so it never races
+ * with a write.
+ *
+ * Anything kept in memory next to the database, such as the spatial index or
+ * the caches, must only change once the rows are committed. Writes hand such
+ * changes to afterCommit, and they are dropped if the batch is rolled back.
+ */
+class DatabaseWriter implements Runnable {
+
+	private static final String LOG_TAG = "WhatsUp";
+
+	/**
+	 * A single write to the database.
+	 */
+	interface Write {
+		/**
+		 * Performs the write. It is run inside the transaction of its batch.
+		 *
+		 * @return true if the write succeeded, false if an error occured.
+		 */
+		boolean write();
+	}
+
+	//The batch being written on the writer thread, if any.
+	private static final ThreadLocal<Batch> current = new ThreadLocal<Batch>();
+
+	private final DatabaseHelper dbHelper;
+	private final Map<Object, Write> pending = new LinkedHashMap<Object, Write>();
+	private final Map<Object, Runnable> maintenance = new LinkedHashMap<Object, Runnable>();
+	private boolean writing;
+
+	DatabaseWriter(DatabaseHelper dbHelper) {
+		this.dbHelper = dbHelper;
+		Thread t = new Thread(this, "Database writer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queues a write that is not coalesced with any other.
+	 *
+	 * @param w the write.
+	 */
+	void enqueue(Write w) {
+		enqueue(new Object(), w);
+	}
+
+	/**
+	 * Queues a write, replacing any write still pending under the same key.
+	 * The write runs after every write queued before it.
+	 *
+	 * @param key what the write is about, e.g. a table row.
+	 * @param w the write.
+	 */
+	synchronized void enqueue(Object key, Write w) {
+		//A put would keep the place of the replaced write.
+		pending.remove(key);
+		pending.put(key, w);
+		notifyAll();
+	}
+
+	/**
+	 * Queues a task to run on the writer thread outside of any transaction,
+	 * after the writes queued before it. A task queued under a key that is
+	 * already pending replaces the pending one.
+	 *
+	 * @param key what the task does.
+	 * @param task the task.
+	 */
+	synchronized void enqueueMaintenance(Object key, Runnable task) {
+		maintenance.put(key, task);
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until every queued write has been committed, and every queued
+	 * maintenance task has run.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	synchronized void flush() throws InterruptedException {
+		while(writing || !pending.isEmpty() || !maintenance.isEmpty()) {
+			wait();
+		}
+	}
+
+	/**
+	 * Runs the action once the batch being written on this thread has been
+	 * committed. If the batch is rolled back, the action is dropped, and only
+	 * the retried write that queues it again runs it. Outside of a batch, the
+	 * action is run at once.
+	 *
+	 * @param action the change to make in memory.
+	 */
+	static void afterCommit(Runnable action) {
+		Batch b = current.get();
+		if(b == null) {
+			action.run();
+		} else {
+			b.actions.add(action);
+		}
+	}
+
+	/**
+	 * Counts rows written by the batch on this thread, for the log of how fast
+	 * batches are written. Outside of a batch, nothing is counted.
+	 *
+	 * @param rows the number of rows.
+	 */
+	static void rowsWritten(int rows) {
+		Batch b = current.get();
+		if(b != null) {
+			b.rows += rows;
+		}
+	}
+
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while(true) {
+			List<Write> batch;
+			List<Runnable> tasks;
+			synchronized(this) {
+				try {
+					while(pending.isEmpty() && maintenance.isEmpty()) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				batch = new ArrayList<Write>(pending.values());
+				pending.clear();
+				tasks = new ArrayList<Runnable>(maintenance.values());
+				maintenance.clear();
+				writing = true;
+			}
+			try {
+				if(!batch.isEmpty()) {
+					commit(batch);
+				}
+				for(Runnable task : tasks) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						Log.w(LOG_TAG, "Maintenance failed", e);
+					}
+				}
+			} finally {
+				synchronized(this) {
+					writing = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	//Commits the batch in one transaction. If any write fails, the whole
+	//transaction is rolled back and the writes are retried one by one, each
+	//in a transaction of its own, so that one bad write does not take the
+	//others with it.
+	private void commit(List<Write> batch) {
+		if(!commitTransaction(batch) && batch.size() > 1) {
+			for(Write w : batch) {
+				commitTransaction(Collections.singletonList(w));
+			}
+		}
+	}
+
+	//Runs the writes in one transaction and, if they all succeed, the changes
+	//they queued with afterCommit. Returns false if the transaction was rolled back.
+	private boolean commitTransaction(List<Write> writes) {
+		Batch b = new Batch();
+		long start = System.nanoTime();
+		boolean succeeded = true;
+		current.set(b);
+		try {
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for(Write w : writes) {
+					succeeded &= w.write();
+				}
+				if(succeeded) {
+					db.setTransactionSuccessful();
+				}
+			} finally {
+				db.endTransaction();
+			}
+		} catch (RuntimeException e) {
+			Log.w(LOG_TAG, "Batch of " + writes.size() + " writes failed", e);
+			succeeded = false;
+		} finally {
+			current.remove();
+		}
+		if(!succeeded) {
+			return false;
+		}
+		for(Runnable action : b.actions) {
+			try {
+				action.run();
+			} catch (RuntimeException e) {
+				Log.w(LOG_TAG, "Update after commit failed", e);
+			}
+		}
+		if(b.rows > 0) {
+			long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+			Log.d(LOG_TAG, "Committed " + writes.size() + " writes: " + b.rows + " rows in "
+					+ micros / 1000 + " ms (" + (b.rows * 1000000L / micros) + " rows/s)");
+		}
+		return true;
+	}
+
+	//What a batch queued to do after its commit, and how many rows it wrote.
+	private static class Batch {
+		final List<Runnable> actions = new ArrayList<Runnable>();
+		int rows;
+	}
+}
@@ -0,0 +1,69 @@
+package nu.placebo.whatsup.datahandling;
+
+/**
+ * Decides for how long data fetched from the server is trusted. Requests for
+ * data fetched within its time to live are answered from the database alone,
+ * without asking the server again.
+ *
+ * A time to live of zero makes every request go to the server, which is how
+ * the DataProvider behaved before fetch times were recorded.
+ */
+public class FreshnessPolicy {
+
+	/**
+	 * Trusts annotations for a minute and the markers of an area for five
+	 * minutes. Markers change less often than the comments of an annotation.
+	 */
+	public static final FreshnessPolicy DEFAULT = new FreshnessPolicy(60 * 1000L, 5 * 60 * 1000L);
+
+	private final long annotationTtl;
+	private final long markerTtl;
+
+	/**
+	 * @param annotationTtl how long a fetched annotation is trusted, in milliseconds.
+	 * @param markerTtl how long the fetched markers of an area are trusted, in milliseconds.
+	 */
+	public FreshnessPolicy(long annotationTtl, long markerTtl) {
+		if(annotationTtl < 0 || markerTtl < 0) {
+			throw new IllegalArgumentException("A time to live can not be negative");
+		}
+		this.annotationTtl = annotationTtl;
+		this.markerTtl = markerTtl;
+	}
+
+	/**
+	 * @return how long a fetched annotation is trusted, in milliseconds.
+	 */
+	public long getAnnotationTtl() {
+		return annotationTtl;
+	}
+
+	/**
+	 * @return how long the fetched markers of an area are trusted, in milliseconds.
+	 */
+	public long getMarkerTtl() {
+		return markerTtl;
+	}
+
+	/**
+	 * @param fetchDate when the annotation was fetched, or 0 if it never was.
+	 * @param now the current time.
+	 * @return true if the annotation does not have to be fetched again.
+	 */
+	public boolean isAnnotationFresh(long fetchDate, long now) {
+		return fetchDate > 0 && now - fetchDate < annotationTtl;
+	}
+
+	/**
+	 * @param now the current time.
+	 * @return the earliest fetch date of an area whose markers are still trusted.
+	 */
+	public long getMarkersFetchedSince(long now) {
+		return now - markerTtl;
+	}
+
+	@Override
+	public String toString() {
+		return "FreshnessPolicy[annotationTtl=" + annotationTtl + ", markerTtl=" + markerTtl + "]";
+	}
+}
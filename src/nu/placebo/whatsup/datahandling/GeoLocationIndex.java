@@ -0,0 +1,475 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import nu.placebo.whatsup.model.GeoLocation;
+
+/**
+ * An in-memory R-tree over GeoLocations, keyed by their node id. It is kept
+ * alongside the geolocation table so that bounding box queries from the map
+ * can be answered in logarithmic time instead of scanning the whole table.
+ *
+ * Adding a GeoLocation with an id that is already indexed replaces the old
+ * entry. All methods are synchronized, so the index can be shared between
+ * the UI thread and the threads writing to the database.
+ */
+public class GeoLocationIndex {
+
+	private static final int MAX_ENTRIES = 16;
+	private static final int MIN_ENTRIES = 6;
+
+	private static final Comparator<GeoLocation> BY_ID_DESCENDING = new Comparator<GeoLocation>() {
+		public int compare(GeoLocation a, GeoLocation b) {
+			return (a.getId() < b.getId() ? 1 : (a.getId() == b.getId() ? 0 : -1));
+		}
+	};
+
+	private Node root = new Node(true);
+	private Map<Integer, GeoLocation> locations = new HashMap<Integer, GeoLocation>();
+
+	/**
+	 * Adds the GeoLocation to the index, replacing any earlier entry with
+	 * the same id.
+	 *
+	 * @param gl the GeoLocation to index.
+	 */
+	public synchronized void put(GeoLocation gl) {
+		if(locations.containsKey(gl.getId())) {
+			remove(gl.getId());
+		}
+		locations.put(gl.getId(), gl);
+		insert(gl);
+	}
+
+	/**
+	 * Removes the GeoLocation with the given id from the index.
+	 *
+	 * @param nid the id of the GeoLocation to remove.
+	 * @return true if something was removed, false if the id was not indexed.
+	 */
+	public synchronized boolean remove(int nid) {
+		GeoLocation gl = locations.remove(nid);
+		if(gl == null) {
+			return false;
+		}
+		Node leaf = findLeaf(root, gl);
+		if(leaf != null) {
+			leaf.items.remove(gl);
+			condenseTree(leaf);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the indexed GeoLocation with the given id, or null if there is none.
+	 *
+	 * @param nid the id of the GeoLocation.
+	 * @return the GeoLocation, or null if it is not indexed.
+	 */
+	public synchronized GeoLocation get(int nid) {
+		return locations.get(nid);
+	}
+
+	/**
+	 * Returns the GeoLocations strictly inside the given area. The order of the
+	 * returned list is unspecified.
+	 *
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @param limit the maximum number of GeoLocations to return, or a negative
+	 * number for no limit.
+	 * @return the GeoLocations inside the area.
+	 */
+	public synchronized List<GeoLocation> query(int maxLat, int maxLong,
+			int minLat, int minLong, int limit) {
+		List<GeoLocation> result = new ArrayList<GeoLocation>();
+		if(limit != 0) {
+			search(root, maxLat, maxLong, minLat, minLong, limit, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns one page of the GeoLocations strictly inside the given area, ordered
+	 * by id. Only the page itself is held in memory, however many GeoLocations
+	 * the area contains.
+	 *
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @param afterNid only GeoLocations with a greater id are returned. Use the id
+	 * of the last GeoLocation of the previous page, or Integer.MIN_VALUE for the
+	 * first page.
+	 * @param limit the page size.
+	 * @return at most limit GeoLocations, ordered by id. A shorter page is the last.
+	 */
+	public synchronized List<GeoLocation> queryPage(int maxLat, int maxLong,
+			int minLat, int minLong, int afterNid, int limit) {
+		//The page is kept in a heap with the greatest id on top, so it can be
+		//replaced when a smaller one turns up.
+		PriorityQueue<GeoLocation> page = new PriorityQueue<GeoLocation>(limit + 1, BY_ID_DESCENDING);
+		if(limit > 0) {
+			searchPage(root, maxLat, maxLong, minLat, minLong, afterNid, limit, page);
+		}
+		List<GeoLocation> result = new ArrayList<GeoLocation>(page);
+		Collections.sort(result, Collections.reverseOrder(BY_ID_DESCENDING));
+		return result;
+	}
+
+	/**
+	 * @return the number of indexed GeoLocations.
+	 */
+	public synchronized int size() {
+		return locations.size();
+	}
+
+	/**
+	 * Removes everything from the index.
+	 */
+	public synchronized void clear() {
+		root = new Node(true);
+		locations.clear();
+	}
+
+	//Returns true when the limit has been reached and the search can stop.
+	private boolean search(Node n, int maxLat, int maxLong, int minLat,
+			int minLong, int limit, List<GeoLocation> result) {
+		if(n.leaf) {
+			for(GeoLocation gl : n.items) {
+				int lat = gl.getLocation().getLatitudeE6();
+				int lng = gl.getLocation().getLongitudeE6();
+				if(lat < maxLat && lng < maxLong && lat > minLat && lng > minLong) {
+					result.add(gl);
+					if(result.size() == limit) {
+						return true;
+					}
+				}
+			}
+		} else {
+			for(Node child : n.children) {
+				if(child.intersects(maxLat, maxLong, minLat, minLong) &&
+						search(child, maxLat, maxLong, minLat, minLong, limit, result)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void searchPage(Node n, int maxLat, int maxLong, int minLat, int minLong,
+			int afterNid, int limit, PriorityQueue<GeoLocation> page) {
+		if(n.leaf) {
+			for(GeoLocation gl : n.items) {
+				int lat = gl.getLocation().getLatitudeE6();
+				int lng = gl.getLocation().getLongitudeE6();
+				if(gl.getId() > afterNid && lat < maxLat && lng < maxLong &&
+						lat > minLat && lng > minLong) {
+					if(page.size() < limit) {
+						page.add(gl);
+					} else if(gl.getId() < page.peek().getId()) {
+						page.poll();
+						page.add(gl);
+					}
+				}
+			}
+		} else {
+			for(Node child : n.children) {
+				if(child.intersects(maxLat, maxLong, minLat, minLong)) {
+					searchPage(child, maxLat, maxLong, minLat, minLong, afterNid, limit, page);
+				}
+			}
+		}
+	}
+
+	private void insert(GeoLocation gl) {
+		int lat = gl.getLocation().getLatitudeE6();
+		int lng = gl.getLocation().getLongitudeE6();
+		Node n = root;
+		while(!n.leaf) {
+			n = chooseSubtree(n, lat, lng);
+		}
+		n.items.add(gl);
+		n.include(lat, lng, lat, lng);
+
+		Node sibling = (n.items.size() > MAX_ENTRIES ? splitLeaf(n) : null);
+		while(n.parent != null) {
+			Node parent = n.parent;
+			if(sibling != null) {
+				parent.addChild(sibling);
+				sibling = (parent.children.size() > MAX_ENTRIES ? splitBranch(parent) : null);
+			}
+			parent.recalculate();
+			n = parent;
+		}
+		if(sibling != null) {
+			Node newRoot = new Node(false);
+			newRoot.addChild(root);
+			newRoot.addChild(sibling);
+			newRoot.recalculate();
+			root = newRoot;
+		}
+	}
+
+	//Picks the child needing the least enlargement to cover the point,
+	//settling ties by the smallest area.
+	private Node chooseSubtree(Node n, int lat, int lng) {
+		Node best = null;
+		long bestEnlargement = Long.MAX_VALUE;
+		long bestArea = Long.MAX_VALUE;
+		for(Node child : n.children) {
+			long area = child.area();
+			long enlargement = area(Math.min(child.minLat, lat), Math.min(child.minLong, lng),
+					Math.max(child.maxLat, lat), Math.max(child.maxLong, lng)) - area;
+			if(enlargement < bestEnlargement ||
+					(enlargement == bestEnlargement && area < bestArea)) {
+				best = child;
+				bestEnlargement = enlargement;
+				bestArea = area;
+			}
+		}
+		return best;
+	}
+
+	private Node findLeaf(Node n, GeoLocation gl) {
+		int lat = gl.getLocation().getLatitudeE6();
+		int lng = gl.getLocation().getLongitudeE6();
+		if(n.leaf) {
+			return (n.items.contains(gl) ? n : null);
+		}
+		for(Node child : n.children) {
+			if(child.contains(lat, lng)) {
+				Node leaf = findLeaf(child, gl);
+				if(leaf != null) {
+					return leaf;
+				}
+			}
+		}
+		return null;
+	}
+
+	//Walks from the given leaf to the root, dissolving nodes that have too
+	//few entries and reinserting their GeoLocations afterwards.
+	private void condenseTree(Node n) {
+		List<GeoLocation> orphans = new ArrayList<GeoLocation>();
+		while(n.parent != null) {
+			Node parent = n.parent;
+			if(n.size() < MIN_ENTRIES) {
+				parent.children.remove(n);
+				collect(n, orphans);
+			} else {
+				n.recalculate();
+			}
+			n = parent;
+		}
+		root.recalculate();
+		while(!root.leaf && root.children.size() == 1) {
+			root = root.children.get(0);
+			root.parent = null;
+		}
+		if(!root.leaf && root.children.isEmpty()) {
+			root = new Node(true);
+		}
+		for(GeoLocation gl : orphans) {
+			insert(gl);
+		}
+	}
+
+	private void collect(Node n, List<GeoLocation> result) {
+		if(n.leaf) {
+			result.addAll(n.items);
+		} else {
+			for(Node child : n.children) {
+				collect(child, result);
+			}
+		}
+	}
+
+	private Node splitLeaf(Node n) {
+		List<GeoLocation> items = new ArrayList<GeoLocation>(n.items);
+		Node sibling = new Node(true);
+		n.items.clear();
+
+		int[] seeds = pickSeeds(items.size(), new BoundsOf<GeoLocation>() {
+			int[] bounds(GeoLocation gl) {
+				return pointBounds(gl);
+			}
+		}, items);
+		n.items.add(items.get(seeds[0]));
+		sibling.items.add(items.get(seeds[1]));
+		items.remove(Math.max(seeds[0], seeds[1]));
+		items.remove(Math.min(seeds[0], seeds[1]));
+		n.recalculate();
+		sibling.recalculate();
+
+		while(!items.isEmpty()) {
+			GeoLocation gl = items.remove(items.size() - 1);
+			Node target = chooseGroup(n, sibling, pointBounds(gl), items.size());
+			target.items.add(gl);
+			int[] b = pointBounds(gl);
+			target.include(b[0], b[1], b[2], b[3]);
+		}
+		return sibling;
+	}
+
+	private Node splitBranch(Node n) {
+		List<Node> children = new ArrayList<Node>(n.children);
+		Node sibling = new Node(false);
+		n.children.clear();
+
+		int[] seeds = pickSeeds(children.size(), new BoundsOf<Node>() {
+			int[] bounds(Node child) {
+				return child.bounds();
+			}
+		}, children);
+		n.addChild(children.get(seeds[0]));
+		sibling.addChild(children.get(seeds[1]));
+		children.remove(Math.max(seeds[0], seeds[1]));
+		children.remove(Math.min(seeds[0], seeds[1]));
+		n.recalculate();
+		sibling.recalculate();
+
+		while(!children.isEmpty()) {
+			Node child = children.remove(children.size() - 1);
+			Node target = chooseGroup(n, sibling, child.bounds(), children.size());
+			target.addChild(child);
+			target.include(child.minLat, child.minLong, child.maxLat, child.maxLong);
+		}
+		return sibling;
+	}
+
+	//Quadratic split: the pair of entries that would waste the most area if
+	//put in the same node are used as seeds for the two groups.
+	private <E> int[] pickSeeds(int count, BoundsOf<E> b, List<E> entries) {
+		int[] seeds = {0, 1};
+		long worst = Long.MIN_VALUE;
+		for(int i = 0; i < count; i++) {
+			int[] bi = b.bounds(entries.get(i));
+			for(int j = i + 1; j < count; j++) {
+				int[] bj = b.bounds(entries.get(j));
+				long waste = area(Math.min(bi[0], bj[0]), Math.min(bi[1], bj[1]),
+						Math.max(bi[2], bj[2]), Math.max(bi[3], bj[3])) -
+						area(bi[0], bi[1], bi[2], bi[3]) - area(bj[0], bj[1], bj[2], bj[3]);
+				if(waste > worst) {
+					worst = waste;
+					seeds[0] = i;
+					seeds[1] = j;
+				}
+			}
+		}
+		return seeds;
+	}
+
+	//Decides which group an entry goes into during a split, making sure that
+	//both groups end up with at least MIN_ENTRIES entries.
+	private Node chooseGroup(Node a, Node b, int[] bounds, int remaining) {
+		if(a.size() + remaining + 1 <= MIN_ENTRIES) {
+			return a;
+		}
+		if(b.size() + remaining + 1 <= MIN_ENTRIES) {
+			return b;
+		}
+		long growA = area(Math.min(a.minLat, bounds[0]), Math.min(a.minLong, bounds[1]),
+				Math.max(a.maxLat, bounds[2]), Math.max(a.maxLong, bounds[3])) - a.area();
+		long growB = area(Math.min(b.minLat, bounds[0]), Math.min(b.minLong, bounds[1]),
+				Math.max(b.maxLat, bounds[2]), Math.max(b.maxLong, bounds[3])) - b.area();
+		if(growA != growB) {
+			return (growA < growB ? a : b);
+		}
+		return (a.size() <= b.size() ? a : b);
+	}
+
+	private static int[] pointBounds(GeoLocation gl) {
+		int lat = gl.getLocation().getLatitudeE6();
+		int lng = gl.getLocation().getLongitudeE6();
+		return new int[] {lat, lng, lat, lng};
+	}
+
+	private static long area(int minLat, int minLong, int maxLat, int maxLong) {
+		return ((long) maxLat - minLat) * ((long) maxLong - minLong);
+	}
+
+	private static abstract class BoundsOf<E> {
+		abstract int[] bounds(E entry);
+	}
+
+	/**
+	 * A node in the tree. Leaves hold GeoLocations, other nodes hold children.
+	 * The bounds are in microdegrees and always cover everything below the node.
+	 */
+	private static class Node {
+		final boolean leaf;
+		final List<Node> children;
+		final List<GeoLocation> items;
+		Node parent;
+		int minLat = Integer.MAX_VALUE;
+		int minLong = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int maxLong = Integer.MIN_VALUE;
+
+		Node(boolean leaf) {
+			this.leaf = leaf;
+			this.children = (leaf ? null : new ArrayList<Node>(MAX_ENTRIES + 1));
+			this.items = (leaf ? new ArrayList<GeoLocation>(MAX_ENTRIES + 1) : null);
+		}
+
+		int size() {
+			return (leaf ? items.size() : children.size());
+		}
+
+		void addChild(Node child) {
+			children.add(child);
+			child.parent = this;
+		}
+
+		int[] bounds() {
+			return new int[] {minLat, minLong, maxLat, maxLong};
+		}
+
+		long area() {
+			return GeoLocationIndex.area(minLat, minLong, maxLat, maxLong);
+		}
+
+		void include(int minLat, int minLong, int maxLat, int maxLong) {
+			this.minLat = Math.min(this.minLat, minLat);
+			this.minLong = Math.min(this.minLong, minLong);
+			this.maxLat = Math.max(this.maxLat, maxLat);
+			this.maxLong = Math.max(this.maxLong, maxLong);
+		}
+
+		void recalculate() {
+			minLat = Integer.MAX_VALUE;
+			minLong = Integer.MAX_VALUE;
+			maxLat = Integer.MIN_VALUE;
+			maxLong = Integer.MIN_VALUE;
+			if(leaf) {
+				for(GeoLocation gl : items) {
+					int lat = gl.getLocation().getLatitudeE6();
+					int lng = gl.getLocation().getLongitudeE6();
+					include(lat, lng, lat, lng);
+				}
+			} else {
+				for(Node child : children) {
+					include(child.minLat, child.minLong, child.maxLat, child.maxLong);
+				}
+			}
+		}
+
+		boolean contains(int lat, int lng) {
+			return lat >= minLat && lat <= maxLat && lng >= minLong && lng <= maxLong;
+		}
+
+		boolean intersects(int maxLat, int maxLong, int minLat, int minLong) {
+			return this.minLat < maxLat && this.maxLat > minLat &&
+				   this.minLong < maxLong && this.maxLong > minLong;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nu.placebo.whatsup.util.Geodetics;
+
+import android.location.Location;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Takes in the position fixes of the phone. A fix that moved less than the
+ * minimum distance from the last accepted one is dropped. Every accepted fix
+ * is passed to the position listeners at once, without any I/O, but it is
+ * persisted at most once per persist interval. A fix that arrives too soon
+ * after the last persisted one is persisted when the interval has passed,
+ * unless a newer one replaces it first.
+ */
+public class LocationIngester {
+
+	/**
+	 * The minimum distance, in meters, used until another is set.
+	 */
+	public static final double DEFAULT_MIN_DISTANCE = 25;
+
+	/**
+	 * The persist interval, in milliseconds, used until another is set.
+	 */
+	public static final long DEFAULT_PERSIST_INTERVAL = 60 * 1000;
+
+	//Persists the fixes that had to wait for the interval to pass.
+	private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Location persister");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final PositionListener persister;
+	private final List<PositionListener> listeners = new CopyOnWriteArrayList<PositionListener>();
+	private double minDistance = DEFAULT_MIN_DISTANCE;
+	private long persistInterval = DEFAULT_PERSIST_INTERVAL;
+	private GeoPoint lastAccepted;
+	private GeoPoint unpersisted;
+	private long lastPersisted = Long.MIN_VALUE;
+	private ScheduledFuture<?> scheduledPersist;
+	private int accepted;
+	private int dropped;
+	private int persisted;
+
+	/**
+	 * @param persister stores the position. It is called on the thread
+	 * delivering the fix, or on a timer thread for a fix that had to wait,
+	 * while holding the lock of the ingester, so that positions are persisted
+	 * in order. It should only queue the write.
+	 */
+	public LocationIngester(PositionListener persister) {
+		this.persister = persister;
+	}
+
+	/**
+	 * Converts the degrees of a location to a GeoPoint, in microdegrees.
+	 *
+	 * @param location the location.
+	 * @return the GeoPoint of the location.
+	 */
+	public static GeoPoint toGeoPoint(Location location) {
+		return new GeoPoint((int) Math.round(location.getLatitude() * 1000000),
+				(int) Math.round(location.getLongitude() * 1000000));
+	}
+
+	/**
+	 * Takes in a position fix.
+	 *
+	 * @param position the position.
+	 * @param time when the fix was taken in, in milliseconds.
+	 * @return true if the fix was accepted, false if it was too close to the last one.
+	 */
+	public boolean onFix(GeoPoint position, long time) {
+		synchronized(this) {
+			if(lastAccepted != null && Geodetics.distance(lastAccepted, position) < minDistance) {
+				dropped++;
+				return false;
+			}
+			lastAccepted = position;
+			accepted++;
+			if(lastPersisted == Long.MIN_VALUE || time - lastPersisted >= persistInterval) {
+				persist(position);
+				lastPersisted = time;
+				unpersisted = null;
+				if(scheduledPersist != null) {
+					scheduledPersist.cancel(false);
+					scheduledPersist = null;
+				}
+			} else {
+				unpersisted = position;
+				if(scheduledPersist == null) {
+					scheduledPersist = timer.schedule(new Runnable() {
+						public void run() {
+							persistWaiting();
+						}
+					}, lastPersisted + persistInterval - time, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		for(PositionListener l : listeners) {
+			l.positionChanged(position);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a listener that is called with every accepted fix.
+	 *
+	 * @param listener the listener.
+	 */
+	public void addPositionListener(PositionListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removePositionListener(PositionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @param meters how far a fix must be from the last accepted one to be accepted.
+	 */
+	public synchronized void setMinDistance(double meters) {
+		minDistance = meters;
+	}
+
+	public synchronized double getMinDistance() {
+		return minDistance;
+	}
+
+	/**
+	 * @param millis the least time between two fixes being persisted.
+	 */
+	public synchronized void setPersistInterval(long millis) {
+		persistInterval = millis;
+	}
+
+	public synchronized long getPersistInterval() {
+		return persistInterval;
+	}
+
+	/**
+	 * @return the last accepted fix, or null if there has been none.
+	 */
+	public synchronized GeoPoint getLastAccepted() {
+		return lastAccepted;
+	}
+
+	/**
+	 * @return the number of fixes accepted.
+	 */
+	public synchronized int getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return the number of fixes dropped for being too close to the last one.
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of fixes persisted.
+	 */
+	public synchronized int getPersisted() {
+		return persisted;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LocationIngester[accepted=" + accepted + ", dropped=" + dropped
+				+ ", persisted=" + persisted + "]";
+	}
+
+	//Persists the fix that waited for the interval to pass, as of the time
+	//it was scheduled for, in the clock of the fixes.
+	private synchronized void persistWaiting() {
+		scheduledPersist = null;
+		if(unpersisted != null) {
+			persist(unpersisted);
+			unpersisted = null;
+			lastPersisted += persistInterval;
+		}
+	}
+
+	private synchronized void persist(GeoPoint position) {
+		persisted++;
+		persister.positionChanged(position);
+	}
+}
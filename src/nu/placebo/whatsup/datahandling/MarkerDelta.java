@@ -0,0 +1,134 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nu.placebo.whatsup.model.GeoLocation;
+
+/**
+ * The difference between two sets of markers, usually the ones stored for an
+ * area and the ones the server returned for it. Markers are matched by nid,
+ * and a matched marker has changed if its position or title differs.
+ *
+ * Only the difference has to be written to the database or drawn on the map,
+ * so the cost of a refresh follows how much has changed rather than how many
+ * markers the area holds.
+ */
+public final class MarkerDelta {
+
+	private final List<GeoLocation> added;
+	private final List<GeoLocation> changed;
+	private final List<GeoLocation> removed;
+	private final int unchanged;
+
+	private MarkerDelta(List<GeoLocation> added, List<GeoLocation> changed,
+			List<GeoLocation> removed, int unchanged) {
+		this.added = Collections.unmodifiableList(added);
+		this.changed = Collections.unmodifiableList(changed);
+		this.removed = Collections.unmodifiableList(removed);
+		this.unchanged = unchanged;
+	}
+
+	/**
+	 * Computes what has to be done to the old markers to get the new ones.
+	 *
+	 * @param oldMarkers the markers known so far, e.g. the stored ones.
+	 * @param newMarkers the markers replacing them, e.g. the fetched ones. If a
+	 * nid occurs more than once, the first occurrence is used.
+	 * @return the delta.
+	 */
+	public static MarkerDelta compute(Collection<GeoLocation> oldMarkers,
+			Collection<GeoLocation> newMarkers) {
+		//Content hashes are compared first. Only when they match are the
+		//markers compared field by field, to rule out a collision.
+		Map<Integer, GeoLocation> byNid = new HashMap<Integer, GeoLocation>(oldMarkers.size() * 4 / 3 + 1);
+		Map<Integer, Integer> hashes = new HashMap<Integer, Integer>(oldMarkers.size() * 4 / 3 + 1);
+		for(GeoLocation gl : oldMarkers) {
+			byNid.put(gl.getId(), gl);
+			hashes.put(gl.getId(), contentHash(gl));
+		}
+		List<GeoLocation> added = new ArrayList<GeoLocation>();
+		List<GeoLocation> changed = new ArrayList<GeoLocation>();
+		int unchanged = 0;
+		Set<Integer> seen = new HashSet<Integer>(newMarkers.size() * 4 / 3 + 1);
+		for(GeoLocation gl : newMarkers) {
+			if(!seen.add(gl.getId())) {
+				continue;
+			}
+			Integer hash = hashes.remove(gl.getId());
+			if(hash == null) {
+				added.add(gl);
+			} else if(hash.intValue() != contentHash(gl) || !sameContent(byNid.get(gl.getId()), gl)) {
+				changed.add(gl);
+			} else {
+				unchanged++;
+			}
+		}
+		List<GeoLocation> removed = new ArrayList<GeoLocation>(hashes.size());
+		for(Integer nid : hashes.keySet()) {
+			removed.add(byNid.get(nid));
+		}
+		return new MarkerDelta(added, changed, removed, unchanged);
+	}
+
+	/**
+	 * @return the markers that are new.
+	 */
+	public List<GeoLocation> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the new versions of the markers that have moved or been renamed.
+	 */
+	public List<GeoLocation> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return the old markers that are gone.
+	 */
+	public List<GeoLocation> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return the number of markers that are the same in both sets.
+	 */
+	public int getUnchangedCount() {
+		return unchanged;
+	}
+
+	/**
+	 * @return true if nothing was added, changed or removed.
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "MarkerDelta[added=" + added.size() + ", changed=" + changed.size()
+				+ ", removed=" + removed.size() + ", unchanged=" + unchanged + "]";
+	}
+
+	//Hashes what is drawn of a marker: its position and title.
+	static int contentHash(GeoLocation gl) {
+		int hash = gl.getLocation().getLatitudeE6();
+		hash = 31 * hash + gl.getLocation().getLongitudeE6();
+		hash = 31 * hash + (gl.getTitle() == null ? 0 : gl.getTitle().hashCode());
+		return hash;
+	}
+
+	private static boolean sameContent(GeoLocation a, GeoLocation b) {
+		return a.getLocation().getLatitudeE6() == b.getLocation().getLatitudeE6()
+				&& a.getLocation().getLongitudeE6() == b.getLocation().getLongitudeE6()
+				&& (a.getTitle() == null ? b.getTitle() == null : a.getTitle().equals(b.getTitle()));
+	}
+}
@@ -0,0 +1,192 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.util.Log;
+
+/**
+ * Delivers the markers of an area in parts, so the first ones can be drawn
+ * without waiting for the rest. The stored markers come first, a page at a
+ * time, followed by the changes to them as the tiles of the area arrive from
+ * the server.
+ *
+ * Each part is handed to the listener as a delta against the parts before it,
+ * one part per task on the executor. With an executor posting to the UI
+ * thread, the map is drawn between the parts.
+ *
+ * How long the first markers took to reach the listener is logged, as the
+ * map should show them within 100 ms when they are stored.
+ */
+public class MarkerStream {
+
+	private static final String LOG_TAG = "WhatsUp";
+
+	private final MarkerStreamListener listener;
+	private final Executor executor;
+	private final LinkedList<MarkerDelta> queue = new LinkedList<MarkerDelta>();
+	//The markers the listener has been or is about to be given, by nid.
+	private final Map<Integer, GeoLocation> shown = new HashMap<Integer, GeoLocation>();
+	private final Runnable deliver = new Runnable() {
+		public void run() {
+			deliverNext();
+		}
+	};
+	private final long started = System.nanoTime();
+	private long firstMarkerMillis = -1;
+	private boolean delivering;
+	private boolean cancelled;
+	private int tilesPending;
+
+	/**
+	 * Creates a stream with nothing to deliver yet. Streams are normally made
+	 * by DataProvider.streamAnnotationMarkers.
+	 *
+	 * @param listener gets the parts.
+	 * @param executor runs each call of the listener.
+	 */
+	public MarkerStream(MarkerStreamListener listener, Executor executor) {
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	/**
+	 * Stops the stream. Parts that have not been delivered yet are dropped, and
+	 * tiles that arrive later are ignored.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	/**
+	 * @return true if every tile has arrived and every part has been delivered,
+	 * or the stream was cancelled.
+	 */
+	public synchronized boolean isDone() {
+		return cancelled || (tilesPending == 0 && queue.isEmpty() && !delivering);
+	}
+
+	synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return how long after the stream was created the first markers were
+	 * handed to the listener, in milliseconds, or -1 if none have been.
+	 */
+	public synchronized long getFirstMarkerMillis() {
+		return firstMarkerMillis;
+	}
+
+	/**
+	 * Queues the stored markers of the area, in pages of the given size.
+	 *
+	 * @param stored the markers.
+	 * @param pageSize the number of markers in each part.
+	 */
+	public synchronized void offerStored(List<GeoLocation> stored, int pageSize) {
+		List<GeoLocation> empty = new ArrayList<GeoLocation>(0);
+		for(int from = 0; from < stored.size(); from += pageSize) {
+			List<GeoLocation> page = stored.subList(from, Math.min(stored.size(), from + pageSize));
+			offer(MarkerDelta.compute(empty, page));
+		}
+	}
+
+	/**
+	 * Returns a listener that turns the markers fetched for a tile into the
+	 * changes to the markers shown in it. The stream is not done until the
+	 * listener has been called. The bounds are exclusive, like those of the
+	 * spatial index, so tiles that overlap by one do not share markers.
+	 *
+	 * @return the listener of the request for the tile.
+	 */
+	public synchronized NetworkOperationListener<List<GeoLocation>> tileListener(final int maxLat,
+			final int maxLong, final int minLat, final int minLong) {
+		tilesPending++;
+		return new NetworkOperationListener<List<GeoLocation>>() {
+			public void operationExcecuted(OperationResult<List<GeoLocation>> result) {
+				synchronized(MarkerStream.this) {
+					tilesPending--;
+					if(cancelled || result == null || result.hasErrors() || result.getResult() == null) {
+						return;
+					}
+					List<GeoLocation> fetched = new ArrayList<GeoLocation>();
+					for(GeoLocation gl : result.getResult()) {
+						if(inside(gl, maxLat, maxLong, minLat, minLong)) {
+							fetched.add(gl);
+						}
+					}
+					List<GeoLocation> old = new ArrayList<GeoLocation>();
+					for(GeoLocation gl : shown.values()) {
+						if(inside(gl, maxLat, maxLong, minLat, minLong)) {
+							old.add(gl);
+						}
+					}
+					MarkerDelta delta = MarkerDelta.compute(old, fetched);
+					if(!delta.isEmpty()) {
+						offer(delta);
+					}
+				}
+			}
+		};
+	}
+
+	private static boolean inside(GeoLocation gl, int maxLat, int maxLong, int minLat, int minLong) {
+		int lat = gl.getLocation().getLatitudeE6();
+		int lng = gl.getLocation().getLongitudeE6();
+		return lat < maxLat && lng < maxLong && lat > minLat && lng > minLong;
+	}
+
+	//Records the delta as shown and queues it for the listener. Deltas are
+	//delivered one at a time, in the order they were offered.
+	private void offer(MarkerDelta delta) {
+		for(GeoLocation gl : delta.getRemoved()) {
+			shown.remove(gl.getId());
+		}
+		for(GeoLocation gl : delta.getChanged()) {
+			shown.put(gl.getId(), gl);
+		}
+		for(GeoLocation gl : delta.getAdded()) {
+			shown.put(gl.getId(), gl);
+		}
+		queue.add(delta);
+		if(!delivering) {
+			delivering = true;
+			executor.execute(deliver);
+		}
+	}
+
+	//Hands the next part to the listener, and leaves the one after it to a
+	//new task, so a posting executor lets other work in between.
+	private void deliverNext() {
+		MarkerDelta delta;
+		synchronized(this) {
+			if(queue.isEmpty()) {
+				delivering = false;
+				return;
+			}
+			delta = queue.removeFirst();
+		}
+		listener.markersChanged(delta);
+		synchronized(this) {
+			if(firstMarkerMillis < 0 && !delta.getAdded().isEmpty()) {
+				firstMarkerMillis = (System.nanoTime() - started) / 1000000;
+				Log.d(LOG_TAG, "First " + delta.getAdded().size() + " markers shown after "
+						+ firstMarkerMillis + " ms");
+			}
+			if(queue.isEmpty()) {
+				delivering = false;
+				return;
+			}
+		}
+		executor.execute(deliver);
+	}
+}
@@ -0,0 +1,15 @@
+package nu.placebo.whatsup.datahandling;
+
+/**
+ * Listens to a MarkerStream for the markers of an area, as they arrive.
+ */
+public interface MarkerStreamListener {
+
+	/**
+	 * Called for each part of the markers that arrives, in order. Applying
+	 * every delta, starting from no markers, gives the markers of the area.
+	 *
+	 * @param delta the markers added, changed and removed by this part.
+	 */
+	public void markersChanged(MarkerDelta delta);
+}
@@ -0,0 +1,179 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tile of a fixed grid over the map, in which the markers are fetched. At
+ * zoom level z, the latitudes and longitudes are each split into 2^z equal
+ * parts, so a tile is known by its zoom level and its column and row, and the
+ * same part of the map always gives the same tiles, however the viewport
+ * happens to lie over it.
+ *
+ * A tile holds the markers whose latitude and longitude are at least its
+ * lower edges and below its upper ones. As the spatial index and the stored
+ * regions use exclusive bounds, the bounds of a tile are one below its lower
+ * edges.
+ */
+public final class MarkerTile {
+
+	/**
+	 * The deepest zoom level, at which a tile is about ten meters wide.
+	 */
+	public static final int MAX_ZOOM = 22;
+
+	private static final long LAT_RANGE = 180000000L;
+	private static final long LONG_RANGE = 360000000L;
+
+	private final int zoom;
+	private final int column;
+	private final int row;
+
+	public MarkerTile(int zoom, int column, int row) {
+		this.zoom = zoom;
+		this.column = column;
+		this.row = row;
+	}
+
+	/**
+	 * Returns the tiles covering an area, with exclusive bounds, at the deepest
+	 * zoom level whose tiles are at least as large as the area, so there are at
+	 * most three along each side.
+	 *
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @return the tiles, row by row.
+	 */
+	public static List<MarkerTile> cover(int maxLat, int maxLong, int minLat, int minLong) {
+		int zoom = zoomFor(maxLat - minLat, maxLong - minLong);
+		int minColumn = index(minLong + 1, LONG_RANGE, zoom);
+		int maxColumn = index(maxLong - 1, LONG_RANGE, zoom);
+		int minRow = index(minLat + 1, LAT_RANGE, zoom);
+		int maxRow = index(maxLat - 1, LAT_RANGE, zoom);
+		List<MarkerTile> tiles = new ArrayList<MarkerTile>(
+				(maxColumn - minColumn + 1) * (maxRow - minRow + 1));
+		for(int row = minRow; row <= maxRow; row++) {
+			for(int column = minColumn; column <= maxColumn; column++) {
+				tiles.add(new MarkerTile(zoom, column, row));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * @param latSpan the height of an area, in microdegrees.
+	 * @param longSpan the width of an area, in microdegrees.
+	 * @return the deepest zoom level whose tiles are at least as large as the area.
+	 */
+	public static int zoomFor(int latSpan, int longSpan) {
+		int zoom = 0;
+		while(zoom < MAX_ZOOM && (LAT_RANGE >> (zoom + 1)) >= latSpan
+				&& (LONG_RANGE >> (zoom + 1)) >= longSpan) {
+			zoom++;
+		}
+		return zoom;
+	}
+
+	/**
+	 * Returns the tile with exactly the given bounds, e.g. to tell whether an
+	 * area whose markers were fetched was a tile.
+	 *
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 * @return the tile, or null if the bounds are not those of a tile.
+	 */
+	public static MarkerTile withBounds(int maxLat, int maxLong, int minLat, int minLong) {
+		for(int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+			MarkerTile t = new MarkerTile(zoom, index(minLong + 1, LONG_RANGE, zoom),
+					index(minLat + 1, LAT_RANGE, zoom));
+			if(t.getMaxLat() == maxLat && t.getMaxLong() == maxLong
+					&& t.getMinLat() == minLat && t.getMinLong() == minLong) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	public int getZoom() {
+		return zoom;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public int getRow() {
+		return row;
+	}
+
+	/**
+	 * @return the exclusive upper bound of the latitudes of the tile.
+	 */
+	public int getMaxLat() {
+		return edge(row + 1, LAT_RANGE);
+	}
+
+	/**
+	 * @return the exclusive upper bound of the longitudes of the tile.
+	 */
+	public int getMaxLong() {
+		return edge(column + 1, LONG_RANGE);
+	}
+
+	/**
+	 * @return the exclusive lower bound of the latitudes of the tile.
+	 */
+	public int getMinLat() {
+		return edge(row, LAT_RANGE) - 1;
+	}
+
+	/**
+	 * @return the exclusive lower bound of the longitudes of the tile.
+	 */
+	public int getMinLong() {
+		return edge(column, LONG_RANGE) - 1;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o instanceof MarkerTile) {
+			MarkerTile other = (MarkerTile) o;
+			return zoom == other.zoom && column == other.column && row == other.row;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (zoom * 31 + column) * 31 + row;
+	}
+
+	@Override
+	public String toString() {
+		return "MarkerTile[" + zoom + "/" + column + "/" + row + "]";
+	}
+
+	//Returns the column or row holding the coordinate. The division can be one
+	//off from the edges, which are rounded, so the edges have the last word.
+	private static int index(int coordinate, long range, int zoom) {
+		long offset = Math.max(0, Math.min(range - 1, coordinate + range / 2));
+		int index = (int) ((offset << zoom) / range);
+		if(index + 1 < (1 << zoom) && edge(index + 1, range, zoom) <= coordinate) {
+			index++;
+		}
+		return index;
+	}
+
+	private int edge(int index, long range) {
+		return edge(index, range, zoom);
+	}
+
+	//Returns the lower edge of the column or row.
+	private static int edge(int index, long range, int zoom) {
+		return (int) (((long) index * range >> zoom) - range / 2);
+	}
+}
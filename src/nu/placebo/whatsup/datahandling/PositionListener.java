@@ -0,0 +1,17 @@
+package nu.placebo.whatsup.datahandling;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Listens to the position of the phone, as accepted by the LocationIngester.
+ */
+public interface PositionListener {
+
+	/**
+	 * Called with each accepted position fix. It is called on the thread
+	 * delivering the fix, so it should return quickly.
+	 *
+	 * @param position the new position of the phone.
+	 */
+	public void positionChanged(GeoPoint position);
+}
@@ -0,0 +1,233 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+
+/**
+ * The file format of an offline region pack: the annotations of an area with
+ * their bodies and comments, so the area can be used without coverage.
+ *
+ * A pack is a gzipped stream of a header followed by the annotations, written
+ * with DataOutputStream. The header holds a magic number, the format version,
+ * the area in microdegrees (max latitude, max longitude, min latitude, min
+ * longitude), the date the data was fetched and the number of annotations.
+ * Strings are stored as a byte count and UTF-8, with -1 for null, so bodies
+ * are not limited to the 64 kB of writeUTF.
+ */
+public final class RegionPack {
+
+	private static final int MAGIC = 0x57555250;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private RegionPack() {
+	}
+
+	/**
+	 * Writes a pack. The header is written when the writer is created, and
+	 * exactly the announced number of annotations must follow.
+	 */
+	public static class Writer {
+		private final DataOutputStream out;
+		private int remaining;
+
+		/**
+		 * @param out where the pack is written. It is not closed by the writer.
+		 * @param area the area as max latitude, max longitude, min latitude and
+		 * min longitude, in microdegrees.
+		 * @param fetchDate when the data was fetched, in milliseconds.
+		 * @param count the number of annotations that will be written.
+		 * @throws IOException if the header could not be written.
+		 */
+		public Writer(OutputStream out, int[] area, long fetchDate, int count) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new NonClosingOutputStream(out)), BUFFER_SIZE));
+			this.remaining = count;
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			for(int i = 0; i < 4; i++) {
+				this.out.writeInt(area[i]);
+			}
+			this.out.writeLong(fetchDate);
+			this.out.writeInt(count);
+		}
+
+		/**
+		 * Writes the next annotation with its comments.
+		 *
+		 * @param a the annotation.
+		 * @throws IOException if the annotation could not be written.
+		 */
+		public void write(Annotation a) throws IOException {
+			if(remaining-- <= 0) {
+				throw new IllegalStateException("More annotations than announced in the header");
+			}
+			GeoLocation gl = a.getGeoLocation();
+			out.writeInt(gl.getId());
+			out.writeInt(gl.getLocation().getLatitudeE6());
+			out.writeInt(gl.getLocation().getLongitudeE6());
+			writeString(out, gl.getTitle());
+			writeString(out, a.getBody());
+			writeString(out, a.getAuthor());
+			List<Comment> comments = a.getComments();
+			int count = (comments == null ? 0 : comments.size());
+			out.writeInt(count);
+			for(int i = 0; i < count; i++) {
+				Comment c = comments.get(i);
+				writeString(out, c.getAuthor());
+				writeString(out, c.getCommentText());
+				writeString(out, c.getTitle());
+				out.writeLong(c.getAddedDate() == null ? 0 : c.getAddedDate().getTime());
+			}
+		}
+
+		/**
+		 * Completes the pack. The underlying stream is flushed but left open.
+		 *
+		 * @throws IOException if the pack could not be completed.
+		 */
+		public void finish() throws IOException {
+			if(remaining != 0) {
+				throw new IllegalStateException(remaining + " annotations announced but not written");
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a pack, one annotation at a time, so a large pack never has to be
+	 * held in memory.
+	 */
+	public static class Reader {
+		private final DataInputStream in;
+		private final int[] area = new int[4];
+		private final long fetchDate;
+		private final int count;
+		private int read;
+
+		/**
+		 * Reads the header of the pack.
+		 *
+		 * @param in the pack. It is not closed by the reader.
+		 * @throws IOException if the stream is not a pack of a known version.
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(in), BUFFER_SIZE));
+			if(this.in.readInt() != MAGIC) {
+				throw new IOException("Not a region pack");
+			}
+			int version = this.in.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported region pack version " + version);
+			}
+			for(int i = 0; i < 4; i++) {
+				area[i] = this.in.readInt();
+			}
+			fetchDate = this.in.readLong();
+			count = this.in.readInt();
+		}
+
+		/**
+		 * @return the area as max latitude, max longitude, min latitude and min
+		 * longitude, in microdegrees.
+		 */
+		public int[] getArea() {
+			return area.clone();
+		}
+
+		/**
+		 * @return when the data in the pack was fetched, in milliseconds.
+		 */
+		public long getFetchDate() {
+			return fetchDate;
+		}
+
+		/**
+		 * @return the number of annotations in the pack.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Reads the next annotation.
+		 *
+		 * @return the annotation, or null if all have been read.
+		 * @throws IOException if the pack is truncated or corrupt.
+		 */
+		public Annotation next() throws IOException {
+			if(read == count) {
+				return null;
+			}
+			read++;
+			GeoLocation gl = new GeoLocation(in.readInt(), in.readInt(), in.readInt(),
+					readString(in));
+			String body = readString(in);
+			String author = readString(in);
+			int comments = in.readInt();
+			if(comments < 0) {
+				throw new IOException("Corrupt region pack");
+			}
+			List<Comment> list = new ArrayList<Comment>(comments);
+			for(int i = 0; i < comments; i++) {
+				list.add(new Comment(readString(in), readString(in), readString(in),
+						new Date(in.readLong())));
+			}
+			return new Annotation(gl, body, author, list);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	//Lets the writer close its gzip stream, which writes the trailer, without
+	//closing the stream of the caller.
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
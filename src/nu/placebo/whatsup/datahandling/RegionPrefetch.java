@@ -0,0 +1,172 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.placebo.whatsup.constants.Constants;
+import nu.placebo.whatsup.model.Annotation;
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.AbstractNetworkOperation;
+import nu.placebo.whatsup.network.AnnotationRetrieve;
+import nu.placebo.whatsup.network.GeoLocationsRetrieve;
+import nu.placebo.whatsup.network.OperationResult;
+import android.util.Log;
+
+/**
+ * Fetches every annotation within an area, with its body and comments, and
+ * stores them, so the area can be used without coverage. The markers of the
+ * area are fetched first, then the annotations, ALLOWED_CONCURRENT_CALLS at a
+ * time. They are stored in chunks, each in one write of the DatabaseWriter, so
+ * a large area is never held in memory at once. Once every chunk is written,
+ * the area is recorded as fetched.
+ *
+ * The result is the number of annotations stored. It has errors if the
+ * markers could not be fetched, or if any of the annotations could not.
+ */
+class RegionPrefetch extends AbstractNetworkOperation<Integer> {
+
+	private static final String LOG_TAG = "WhatsUp";
+
+	//The number of annotations stored in one transaction.
+	private static final int CHUNK_SIZE = 200;
+
+	private final int[] area;
+	private final DatabaseWriter writer;
+	private final CacheGovernor cacheGovernor;
+	private final AnnotationCache annotationCache;
+	//The markers and annotations committed so far.
+	private final AtomicInteger storedMarkers = new AtomicInteger();
+	private final AtomicInteger storedAnnotations = new AtomicInteger();
+
+	/**
+	 * @param area the area as max latitude, max longitude, min latitude and min
+	 * longitude, in microdegrees.
+	 * @param writer writes what is fetched.
+	 * @param cacheGovernor told about the stored rows.
+	 * @param annotationCache the cached copies of the stored annotations are
+	 * dropped from it.
+	 */
+	RegionPrefetch(int[] area, DatabaseWriter writer, CacheGovernor cacheGovernor,
+			AnnotationCache annotationCache) {
+		this.area = area.clone();
+		this.writer = writer;
+		this.cacheGovernor = cacheGovernor;
+		this.annotationCache = annotationCache;
+	}
+
+	public OperationResult<Integer> execute() {
+		final long fetchDate = System.currentTimeMillis();
+		OperationResult<List<GeoLocation>> markers = new GeoLocationsRetrieve(
+				(area[0] - 0.5) / 1000000, (area[1] - 0.5) / 1000000,
+				(area[2] - 0.5) / 1000000, (area[3] - 0.5) / 1000000).execute();
+		if(markers.hasErrors() || markers.getResult() == null) {
+			return new OperationResult<Integer>(true, markers.getStatusCode(),
+					markers.getStatusMessage(), 0);
+		}
+		final List<GeoLocation> glList = markers.getResult();
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				if(!DatabaseConnectionLayer.storeGeoLocations(glList, fetchDate)) {
+					return false;
+				}
+				DatabaseWriter.afterCommit(new Runnable() {
+					public void run() {
+						stored(storedMarkers, glList.size());
+						for(GeoLocation gl : glList) {
+							annotationCache.remove(gl.getId());
+						}
+					}
+				});
+				return true;
+			}
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(Constants.ALLOWED_CONCURRENT_CALLS);
+		int fetched = 0;
+		int failed = 0;
+		try {
+			for(int first = 0; first < glList.size(); first += CHUNK_SIZE) {
+				List<Future<OperationResult<Annotation>>> fetches =
+						new ArrayList<Future<OperationResult<Annotation>>>(CHUNK_SIZE);
+				for(GeoLocation gl : glList.subList(first, Math.min(first + CHUNK_SIZE, glList.size()))) {
+					final AnnotationRetrieve ar = new AnnotationRetrieve(gl.getId());
+					fetches.add(executor.submit(new Callable<OperationResult<Annotation>>() {
+						public OperationResult<Annotation> call() {
+							return ar.execute();
+						}
+					}));
+				}
+				final List<Annotation> chunk = new ArrayList<Annotation>(fetches.size());
+				for(Future<OperationResult<Annotation>> f : fetches) {
+					OperationResult<Annotation> result = f.get();
+					if(result.hasErrors() || result.getResult() == null) {
+						failed++;
+					} else {
+						chunk.add(result.getResult());
+					}
+				}
+				fetched += chunk.size();
+				writer.enqueue(new DatabaseWriter.Write() {
+					public boolean write() {
+						if(!DatabaseConnectionLayer.storeAnnotations(chunk, fetchDate)) {
+							return false;
+						}
+						DatabaseWriter.afterCommit(new Runnable() {
+							public void run() {
+								stored(storedAnnotations, chunk.size());
+								for(Annotation a : chunk) {
+									annotationCache.remove(a.getId());
+								}
+							}
+						});
+						return true;
+					}
+				});
+			}
+			//The area is only recorded once everything in it is committed.
+			writer.flush();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new OperationResult<Integer>(true, 0, "Interrupted", storedAnnotations.get());
+		} catch(ExecutionException e) {
+			Log.w(LOG_TAG, "Prefetch failed", e);
+			return new OperationResult<Integer>(true, 0, "Prefetch failed", storedAnnotations.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		int stored = storedAnnotations.get();
+		Log.i(LOG_TAG, "Prefetched " + stored + " of " + glList.size() + " annotations");
+		if(storedMarkers.get() < glList.size()) {
+			return new OperationResult<Integer>(true, 0, "Could not store the markers", stored);
+		}
+		if(failed > 0) {
+			return new OperationResult<Integer>(true, markers.getStatusCode(),
+					failed + " annotations could not be fetched", stored);
+		}
+		if(stored < fetched) {
+			return new OperationResult<Integer>(true, 0,
+					(fetched - stored) + " annotations could not be stored", stored);
+		}
+		writer.enqueue(new DatabaseWriter.Write() {
+			public boolean write() {
+				DatabaseConnectionLayer.storeFetchedRegion(area[0], area[1], area[2], area[3],
+						fetchDate, 0);
+				return true;
+			}
+		});
+		return new OperationResult<Integer>(false, markers.getStatusCode(),
+				markers.getStatusMessage(), stored);
+	}
+
+	//Runs once rows of this prefetch are committed.
+	private void stored(AtomicInteger counter, int rows) {
+		counter.addAndGet(rows);
+		cacheGovernor.rowsStored(rows);
+	}
+}
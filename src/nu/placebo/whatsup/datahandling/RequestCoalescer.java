@@ -0,0 +1,139 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.placebo.whatsup.network.NetworkOperation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.NetworkTask;
+import nu.placebo.whatsup.network.OperationResult;
+
+/**
+ * Makes sure the same data is only requested from the server once at a time.
+ * Requests are identified by a key, e.g. the nid of an annotation. A request
+ * made while another one with the same key is in flight does not make a
+ * network call; its listeners are called with the result of the first one.
+ *
+ * Requests must be made on the UI thread, where the network calls are
+ * started and their listeners called.
+ */
+public class RequestCoalescer {
+
+	/**
+	 * Creates the network operation for a key that has no request in flight.
+	 */
+	public interface OperationFactory<T> {
+		/**
+		 * @return a new operation fetching the data of the key.
+		 */
+		NetworkOperation<T> create();
+	}
+
+	private final ConcurrentMap<Object, Request<?>> inFlight =
+			new ConcurrentHashMap<Object, Request<?>>();
+	private final AtomicInteger startedCalls = new AtomicInteger();
+	private final AtomicInteger savedCalls = new AtomicInteger();
+
+	/**
+	 * Adds the listener to the request with the given key that is in flight, or
+	 * if there is none, starts one.
+	 *
+	 * @param key identifies the data requested.
+	 * @param factory creates the operation if a request has to be started.
+	 * @param listener the listener of this caller.
+	 * @param storer a listener that is only added if a request is started, and
+	 * called after the others. It stores the result, which is only needed once.
+	 * @return true if a network call was started, false if the listener was
+	 * added to a request in flight.
+	 */
+	public <T> boolean request(Object key, OperationFactory<T> factory,
+			NetworkOperationListener<T> listener, NetworkOperationListener<T> storer) {
+		Request<T> created = new Request<T>(key);
+		created.attach(listener);
+		created.storer = storer;
+		while(true) {
+			@SuppressWarnings("unchecked")
+			Request<T> existing = (Request<T>) inFlight.putIfAbsent(key, created);
+			if(existing == null) {
+				NetworkOperation<T> operation = factory.create();
+				operation.addOperationListener(created);
+				startedCalls.incrementAndGet();
+				new NetworkTask<T>().execute(operation);
+				return true;
+			}
+			if(existing.attach(listener)) {
+				savedCalls.incrementAndGet();
+				return false;
+			}
+			//The request finished between the lookup and the attach.
+			inFlight.remove(key, existing);
+		}
+	}
+
+	/**
+	 * @return the number of network calls started.
+	 */
+	public int getStartedCalls() {
+		return startedCalls.get();
+	}
+
+	/**
+	 * @return the number of network calls saved by joining a request in flight.
+	 */
+	public int getSavedCalls() {
+		return savedCalls.get();
+	}
+
+	/**
+	 * @return the number of requests in flight.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+	@Override
+	public String toString() {
+		return "RequestCoalescer[started=" + startedCalls.get() + ", saved=" + savedCalls.get()
+				+ ", inFlight=" + inFlight.size() + "]";
+	}
+
+	//The single listener of a network operation, passing its result on to the
+	//listeners of every caller that asked for the same key.
+	private class Request<T> implements NetworkOperationListener<T> {
+		private final Object key;
+		private final List<NetworkOperationListener<T>> listeners =
+				new ArrayList<NetworkOperationListener<T>>();
+		private NetworkOperationListener<T> storer;
+		private boolean finished;
+
+		Request(Object key) {
+			this.key = key;
+		}
+
+		//Returns false if the result has already been passed on.
+		synchronized boolean attach(NetworkOperationListener<T> listener) {
+			if(finished) {
+				return false;
+			}
+			listeners.add(listener);
+			return true;
+		}
+
+		public void operationExcecuted(OperationResult<T> result) {
+			synchronized(this) {
+				finished = true;
+			}
+			inFlight.remove(key, this);
+			//No listener can be added once finished is set.
+			for(NetworkOperationListener<T> l : listeners) {
+				l.operationExcecuted(result);
+			}
+			if(storer != null) {
+				storer.operationExcecuted(result);
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the DataReturn objects whose network requests are in flight.
+ * Each request gets an id that is never reused, so completing one request can
+ * not resolve another, whatever order they finish in. It is safe to use from
+ * any number of threads without locking.
+ */
+public class RequestRegistry {
+
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final ConcurrentMap<Integer, DataReturn<?>> inFlight =
+			new ConcurrentHashMap<Integer, DataReturn<?>>();
+
+	/**
+	 * Creates a DataReturn with a new id and registers it as in flight.
+	 *
+	 * @param localData the local data of the DataReturn.
+	 * @return the registered DataReturn.
+	 */
+	public <T> DataReturn<T> register(T localData) {
+		return register(localData, null);
+	}
+
+	/**
+	 * Creates a DataReturn with a new id, which compares the server data to
+	 * the local data with the given comparator, and registers it as in flight.
+	 *
+	 * @param localData the local data of the DataReturn.
+	 * @param comparator returns 0 if the server data is the same as the local
+	 * data, or null to compare them with equals.
+	 * @return the registered DataReturn.
+	 */
+	public <T> DataReturn<T> register(T localData, Comparator<? super T> comparator) {
+		//Ids are non-negative. When the counter wraps around, the oldest ids
+		//are long gone.
+		int id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+		DataReturn<T> result = new DataReturn<T>(localData, id, comparator);
+		inFlight.put(id, result);
+		return result;
+	}
+
+	/**
+	 * Returns the in-flight DataReturn with the given id.
+	 *
+	 * @param id the id of the DataReturn.
+	 * @return the DataReturn, or null if it is not in flight.
+	 */
+	public DataReturn<?> get(int id) {
+		return inFlight.get(id);
+	}
+
+	/**
+	 * Removes the DataReturn with the given id, as its request has finished.
+	 *
+	 * @param id the id of the DataReturn.
+	 * @return the DataReturn, or null if it was not in flight, e.g. because it
+	 * was completed already.
+	 */
+	public DataReturn<?> complete(int id) {
+		return inFlight.remove(id);
+	}
+
+	/**
+	 * @return the number of requests in flight.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+}
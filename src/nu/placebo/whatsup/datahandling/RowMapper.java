@@ -0,0 +1,110 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import nu.placebo.whatsup.model.Comment;
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.model.ReferencePoint;
+import android.database.Cursor;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Turns cursor rows into model objects. Each mapper has an explicit projection
+ * which should be used when querying, and the column ordinals are looked up once
+ * per cursor rather than once per row and column.
+ *
+ * @param <T> the type each row is mapped to.
+ */
+abstract class RowMapper<T> {
+
+	/**
+	 * Maps rows selected with the projection nid, latitude, longitude, title.
+	 */
+	static final RowMapper<GeoLocation> GEOLOCATION = new RowMapper<GeoLocation>(
+			"nid", "latitude", "longitude", "title") {
+		GeoLocation map(Cursor c, int[] col) {
+			return new GeoLocation(c.getInt(col[0]), c.getInt(col[1]),
+					c.getInt(col[2]), c.getString(col[3]));
+		}
+	};
+
+	/**
+	 * Maps rows selected with the projection author, comment, title, added_date.
+	 */
+	static final RowMapper<Comment> COMMENT = new RowMapper<Comment>(
+			"author", "comment", "title", "added_date") {
+		Comment map(Cursor c, int[] col) {
+			return new Comment(c.getString(col[0]), c.getString(col[1]),
+					c.getString(col[2]), new Date(c.getLong(col[3])));
+		}
+	};
+
+	/**
+	 * Maps rows selected with the projection _id, latitude, longitude, name. The
+	 * physical position of the phone is given the name shown to the user.
+	 */
+	static final RowMapper<ReferencePoint> REFERENCE_POINT = new RowMapper<ReferencePoint>(
+			"_id", "latitude", "longitude", "name") {
+		ReferencePoint map(Cursor c, int[] col) {
+			String name = c.getString(col[3]);
+			return new ReferencePoint(c.getInt(col[0]),
+					new GeoPoint(c.getInt(col[1]), c.getInt(col[2])),
+					name.equals("physical_position") ? "My location" : name);
+		}
+	};
+
+	private final String[] projection;
+
+	RowMapper(String... projection) {
+		this.projection = projection;
+	}
+
+	/**
+	 * @return the columns this mapper reads, in the order the ordinals are passed
+	 * to {@link #map(Cursor, int[])}.
+	 */
+	String[] getProjection() {
+		return projection.clone();
+	}
+
+	/**
+	 * Maps the row the cursor is at.
+	 *
+	 * @param c the cursor, positioned at a row.
+	 * @param columns the ordinals of the projection columns in the cursor.
+	 * @return the mapped object.
+	 */
+	abstract T map(Cursor c, int[] columns);
+
+	/**
+	 * Maps every row of the cursor and closes it.
+	 *
+	 * @param c a cursor containing the columns of the projection.
+	 * @return the mapped objects, in cursor order.
+	 */
+	List<T> mapAll(Cursor c) {
+		try {
+			List<T> result = new ArrayList<T>(c.getCount());
+			if(c.moveToFirst()) {
+				int[] columns = resolve(c);
+				do {
+					result.add(map(c, columns));
+				} while(c.moveToNext());
+			}
+			return result;
+		} finally {
+			c.close();
+		}
+	}
+
+	private int[] resolve(Cursor c) {
+		int[] columns = new int[projection.length];
+		for(int i = 0; i < projection.length; i++) {
+			columns[i] = c.getColumnIndexOrThrow(projection[i]);
+		}
+		return columns;
+	}
+}
@@ -0,0 +1,132 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers when the markers of the most recently used tiles were fetched, so
+ * that most tiles can be found fresh without asking the database. A tile not
+ * remembered may still be covered by a stored region, e.g. one fetched by a
+ * prefetch or imported from a region pack, so the database is asked then.
+ * Whenever markers are evicted from the database, the tiles are forgotten.
+ */
+public class TileCache {
+
+	private final Map<MarkerTile, Long> fetchDates;
+	private int memoryHits;
+	private int databaseHits;
+	private int misses;
+
+	/**
+	 * @param capacity the number of tiles remembered.
+	 */
+	public TileCache(final int capacity) {
+		fetchDates = new LinkedHashMap<MarkerTile, Long>(capacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<MarkerTile, Long> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Tells whether the markers of a tile were fetched after the given time.
+	 *
+	 * @param tile the tile.
+	 * @param since the time in milliseconds the fetch must be more recent than.
+	 * @return true if the tile need not be fetched.
+	 */
+	boolean isFresh(MarkerTile tile, long since) {
+		synchronized(this) {
+			if(isFreshInMemory(tile, since)) {
+				memoryHits++;
+				return true;
+			}
+		}
+		boolean fresh = isStoredFresh(tile, since);
+		synchronized(this) {
+			if(fresh) {
+				databaseHits++;
+			} else {
+				misses++;
+			}
+		}
+		return fresh;
+	}
+
+	/**
+	 * Like isFresh, but not counted, for lookups no stream asked for.
+	 *
+	 * @param tile the tile.
+	 * @param since the time in milliseconds the fetch must be more recent than.
+	 * @return true if the tile need not be fetched.
+	 */
+	boolean isFreshUncounted(MarkerTile tile, long since) {
+		return isFreshInMemory(tile, since) || isStoredFresh(tile, since);
+	}
+
+	/**
+	 * Tells, without counting and without asking the database, whether the
+	 * markers of a tile were fetched after the given time, e.g. to see if a
+	 * tile already looked up has been fetched since.
+	 *
+	 * @param tile the tile.
+	 * @param since the time in milliseconds the fetch must be more recent than.
+	 * @return true if the tile is remembered as fresh.
+	 */
+	synchronized boolean isFreshInMemory(MarkerTile tile, long since) {
+		Long fetchDate = fetchDates.get(tile);
+		return fetchDate != null && fetchDate > since;
+	}
+
+	private static boolean isStoredFresh(MarkerTile tile, long since) {
+		return DatabaseConnectionLayer.isRegionFetchedSince(tile.getMaxLat(),
+				tile.getMaxLong(), tile.getMinLat(), tile.getMinLong(), since);
+	}
+
+	synchronized void put(MarkerTile tile, long fetchDate) {
+		fetchDates.put(tile, fetchDate);
+	}
+
+	synchronized void clear() {
+		fetchDates.clear();
+	}
+
+	/**
+	 * @return the number of tiles found fresh in memory.
+	 */
+	public synchronized int getMemoryHits() {
+		return memoryHits;
+	}
+
+	/**
+	 * @return the number of tiles found fresh in the database.
+	 */
+	public synchronized int getDatabaseHits() {
+		return databaseHits;
+	}
+
+	/**
+	 * @return the number of tiles that had to be fetched.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the share of the tiles that did not have to be fetched, or 0 if
+	 * no tile has been looked up.
+	 */
+	public synchronized double getHitRate() {
+		int lookups = memoryHits + databaseHits + misses;
+		return (lookups == 0 ? 0 : (double) (memoryHits + databaseHits) / lookups);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TileCache[size=" + fetchDates.size() + ", memoryHits=" + memoryHits
+				+ ", databaseHits=" + databaseHits + ", misses=" + misses + "]";
+	}
+}
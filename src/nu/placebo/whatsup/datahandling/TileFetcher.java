@@ -0,0 +1,180 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Fetches the markers of tiles for the marker streams, at most a given number
+ * at a time. The others wait in line, and a tile that has become fresh while
+ * waiting, e.g. because another stream fetched it, is read from the database
+ * instead. Tiles of cancelled streams are dropped from the line. Tiles
+ * prefetched for no stream wait in the same line.
+ *
+ * Whether a tile is fresh may take a database query, so tiles are looked up
+ * and read on a background thread, never on the thread asking for them. The
+ * network requests are started on the main thread, like all others.
+ */
+class TileFetcher {
+
+	//Looks up and reads the tiles.
+	private static final ExecutorService background = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Tile fetcher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final DataProvider provider;
+	private final TileCache tileCache;
+	private final int maxRunning;
+	private final Executor main;
+	private final LinkedList<Pending> queue = new LinkedList<Pending>();
+	private final Runnable startNext = new Runnable() {
+		public void run() {
+			startNext();
+		}
+	};
+	private int running;
+
+	TileFetcher(DataProvider provider, TileCache tileCache, int maxRunning) {
+		this.provider = provider;
+		this.tileCache = tileCache;
+		this.maxRunning = maxRunning;
+		final Handler handler = new Handler(Looper.getMainLooper());
+		this.main = new Executor() {
+			public void execute(Runnable r) {
+				handler.post(r);
+			}
+		};
+	}
+
+	/**
+	 * Gets the markers of a tile for a stream. A fresh tile is read from the
+	 * database, any other is queued to be fetched. Returns at once; the
+	 * listener is called from another thread.
+	 *
+	 * @param tile the tile.
+	 * @param stream the stream that wants the tile.
+	 * @param listener gets the markers of the tile.
+	 */
+	void fetch(final MarkerTile tile, final MarkerStream stream,
+			final NetworkOperationListener<List<GeoLocation>> listener) {
+		background.execute(new Runnable() {
+			public void run() {
+				if(stream.isCancelled()) {
+					return;
+				}
+				if(tileCache.isFresh(tile, provider.getFreshnessPolicy().getMarkersFetchedSince(
+						System.currentTimeMillis()))) {
+					readStored(tile, listener);
+					return;
+				}
+				synchronized(TileFetcher.this) {
+					queue.add(new Pending(tile, stream, listener));
+				}
+				startNext();
+			}
+		});
+	}
+
+	/**
+	 * Queues a tile to be fetched for no stream, e.g. by the viewport
+	 * prefetcher, which has found it not to be fresh. Returns at once; the
+	 * listener is called from another thread, with null if the tile was
+	 * fetched by someone else while waiting.
+	 *
+	 * @param tile the tile.
+	 * @param listener told when the tile has been fetched.
+	 */
+	void prefetch(MarkerTile tile, NetworkOperationListener<List<GeoLocation>> listener) {
+		synchronized(this) {
+			queue.add(new Pending(tile, null, listener));
+		}
+		background.execute(startNext);
+	}
+
+	//Hands the stored markers of a tile to its listener.
+	private static void readStored(MarkerTile t, NetworkOperationListener<List<GeoLocation>> listener) {
+		listener.operationExcecuted(new OperationResult<List<GeoLocation>>(false, 0, null,
+				DatabaseConnectionLayer.getAnnotationMarkers(t.getMaxLat(), t.getMaxLong(),
+						t.getMinLat(), t.getMinLong())));
+	}
+
+	//Starts waiting tiles while there is room. Runs on the background thread.
+	//Nothing is called while the lock is held, as the listeners lead back into
+	//the stream.
+	private void startNext() {
+		while(true) {
+			Pending next;
+			synchronized(this) {
+				if(running >= maxRunning || queue.isEmpty()) {
+					return;
+				}
+				next = queue.removeFirst();
+				if(next.stream != null && next.stream.isCancelled()) {
+					continue;
+				}
+				running++;
+			}
+			final MarkerTile t = next.tile;
+			//The tile was looked up when queued, so only a fetch committed
+			//since then can have made it fresh, and that is remembered in memory.
+			if(tileCache.isFreshInMemory(t, provider.getFreshnessPolicy().getMarkersFetchedSince(
+					System.currentTimeMillis()))) {
+				synchronized(this) {
+					running--;
+				}
+				if(next.stream == null) {
+					next.listener.operationExcecuted(null);
+				} else {
+					readStored(t, next.listener);
+				}
+			} else {
+				final Pending request = next;
+				main.execute(new Runnable() {
+					public void run() {
+						provider.requestMarkers(t.getMaxLat(), t.getMaxLong(), t.getMinLat(),
+								t.getMinLong(), request);
+					}
+				});
+			}
+		}
+	}
+
+	//A tile waiting in line, and then the listener of its request. The stream
+	//is null for a prefetched tile.
+	private class Pending implements NetworkOperationListener<List<GeoLocation>> {
+		private final MarkerTile tile;
+		private final MarkerStream stream;
+		private final NetworkOperationListener<List<GeoLocation>> listener;
+
+		Pending(MarkerTile tile, MarkerStream stream,
+				NetworkOperationListener<List<GeoLocation>> listener) {
+			this.tile = tile;
+			this.stream = stream;
+			this.listener = listener;
+		}
+
+		//The tile is remembered as fresh by the DataProvider once its markers
+		//are committed, which is after this.
+		public void operationExcecuted(OperationResult<List<GeoLocation>> result) {
+			synchronized(TileFetcher.this) {
+				running--;
+			}
+			listener.operationExcecuted(result);
+			background.execute(startNext);
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package nu.placebo.whatsup.datahandling;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nu.placebo.whatsup.model.GeoLocation;
+import nu.placebo.whatsup.network.NetworkOperationListener;
+import nu.placebo.whatsup.network.OperationResult;
+
+/**
+ * Fetches the markers of the viewport the user is heading toward, before the
+ * map gets there. The map reports its center and span as it moves, and the
+ * movement and zoom of the last second are extrapolated a little ahead. The
+ * predicted viewport is covered by marker tiles, see MarkerTile, and the tiles
+ * that are not fresh are fetched into the database by the tile fetcher of the
+ * marker streams, so that when the map arrives its tiles are fresh and no
+ * request has to be made.
+ *
+ * Prefetching is low priority. It only starts while no other marker request
+ * is in flight, and it is kept within a budget of concurrent prefetches and
+ * prefetches per minute. How many prefetches had tiles that were later
+ * shown is kept as a hit rate.
+ *
+ * The map reports from the thread drawing it, so only the prediction is made
+ * there. Whether a prefetch is needed takes a database query, and is found
+ * out on a background thread.
+ */
+public class ViewportPrefetcher {
+
+	/**
+	 * The number of prefetches that may be in flight at once, until another is set.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+	/**
+	 * The number of prefetches that may be started per minute, until another is set.
+	 */
+	public static final int DEFAULT_MAX_PER_MINUTE = 10;
+
+	//How far back the movement is measured, and how far ahead it is extrapolated.
+	private static final long WINDOW = 1000;
+	private static final long LOOKAHEAD = 1000;
+
+	//How far, in spans, the viewport has to be predicted to move, or to grow,
+	//for a prefetch to be worth it.
+	private static final double MIN_MOVE = 0.25;
+
+	//A zoom is never extrapolated to more than this factor.
+	private static final double MAX_ZOOM = 4;
+
+	//The number of prefetched tiles remembered for the hit rate.
+	private static final int MAX_PREFETCHED = 64;
+
+	//Finds out whether to prefetch, unless another executor is given.
+	private static final ExecutorService background = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Viewport prefetcher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final Executor executor;
+	private final LinkedList<long[]> samples = new LinkedList<long[]>();
+	//The prefetched tiles not shown yet, oldest first.
+	private final LinkedHashSet<MarkerTile> prefetched = new LinkedHashSet<MarkerTile>();
+	private final LinkedList<Long> started = new LinkedList<Long>();
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int maxPerMinute = DEFAULT_MAX_PER_MINUTE;
+	private boolean checking;
+	private int inFlight;
+	private int tilesInFlight;
+	private int prefetches;
+	private int completed;
+	private int hits;
+	private int shown;
+
+	/**
+	 * Creates a prefetcher that finds out whether to prefetch on a background
+	 * thread of its own.
+	 */
+	public ViewportPrefetcher() {
+		this(background);
+	}
+
+	/**
+	 * @param executor finds out whether to prefetch, off the thread reporting
+	 * where the map is.
+	 */
+	public ViewportPrefetcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Reports where the map is. Call it whenever the center or span changes.
+	 * Returns at once; whether to prefetch is found out by the executor.
+	 *
+	 * @param centerLat the latitude of the center, in microdegrees.
+	 * @param centerLong the longitude of the center, in microdegrees.
+	 * @param latSpan the height of the viewport, in microdegrees.
+	 * @param longSpan the width of the viewport, in microdegrees.
+	 * @param time when the map was there, in milliseconds.
+	 */
+	public void onViewportChanged(int centerLat, int centerLong, int latSpan, int longSpan,
+			final long time) {
+		final int[] area;
+		synchronized(this) {
+			samples.add(new long[] {time, centerLat, centerLong, latSpan, longSpan});
+			while(samples.getFirst()[0] < time - WINDOW) {
+				samples.removeFirst();
+			}
+			area = predict();
+			//One check at a time is enough, the map is drawn far more often.
+			if(area == null || checking || !withinBudget(time)) {
+				return;
+			}
+			checking = true;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					check(area, time);
+				} finally {
+					synchronized(ViewportPrefetcher.this) {
+						checking = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reports that the markers of an area are about to be shown, to count the
+	 * prefetches that were of use. The area is a hit if any of the tiles
+	 * covering it was fetched by a prefetch, as that tile is then fresh
+	 * because of it. Each prefetched tile is counted once.
+	 *
+	 * @param maxLat
+	 * @param maxLong
+	 * @param minLat
+	 * @param minLong
+	 */
+	public synchronized void viewportShown(int maxLat, int maxLong, int minLat, int minLong) {
+		shown++;
+		boolean hit = false;
+		for(MarkerTile tile : MarkerTile.cover(maxLat, maxLong, minLat, minLong)) {
+			hit |= prefetched.remove(tile);
+		}
+		if(hit) {
+			hits++;
+		}
+	}
+
+	/**
+	 * @return the predicted viewport, as {maxLat, maxLong, minLat, minLong}, or
+	 * null if the map is not moving toward a new one.
+	 */
+	public synchronized int[] getPredictedArea() {
+		return predict();
+	}
+
+	/**
+	 * @param maxInFlight the number of prefetches that may be in flight at once.
+	 * 0 turns prefetching off.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param maxPerMinute the number of prefetches that may be started per minute.
+	 */
+	public synchronized void setMaxPerMinute(int maxPerMinute) {
+		this.maxPerMinute = maxPerMinute;
+	}
+
+	/**
+	 * @return the number of prefetches started.
+	 */
+	public synchronized int getPrefetches() {
+		return prefetches;
+	}
+
+	/**
+	 * @return the number of shown areas that had prefetched tiles.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the share of the successful prefetches that were later shown,
+	 * or 0 if none has finished.
+	 */
+	public synchronized double getHitRate() {
+		return (completed == 0 ? 0 : (double) hits / completed);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ViewportPrefetcher[prefetches=" + prefetches + ", completed=" + completed
+				+ ", hits=" + hits + ", shown=" + shown + "]";
+	}
+
+	/**
+	 * Starts fetching the markers of a tile into the database.
+	 *
+	 * @param tile the tile.
+	 * @param done called when the fetch has finished, with null if the tile
+	 * was fetched by someone else first.
+	 */
+	protected void startPrefetch(MarkerTile tile, NetworkOperationListener<List<GeoLocation>> done) {
+		DataProvider.getDataProvider(null).getTileFetcher().prefetch(tile, done);
+	}
+
+	/**
+	 * @param tile a tile of the predicted viewport.
+	 * @return true if the markers of the tile are fresh, so need no prefetch.
+	 */
+	protected boolean isFresh(MarkerTile tile) {
+		DataProvider provider = DataProvider.getDataProvider(null);
+		return provider.getTileCache().isFreshUncounted(tile,
+				provider.getFreshnessPolicy().getMarkersFetchedSince(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return true if other marker requests are in flight, which a prefetch
+	 * must not slow down.
+	 */
+	protected boolean isBusy() {
+		int own;
+		synchronized(this) {
+			own = tilesInFlight;
+		}
+		return DataProvider.getDataProvider(null).getRequestCoalescer().size() > own;
+	}
+
+	//Starts a prefetch of the tiles of the predicted area that are not fresh,
+	//unless other requests are in flight. Runs on the executor.
+	private void check(int[] area, long time) {
+		if(isBusy()) {
+			return;
+		}
+		List<MarkerTile> tiles = new LinkedList<MarkerTile>();
+		for(MarkerTile tile : MarkerTile.cover(area[0], area[1], area[2], area[3])) {
+			if(!isFresh(tile)) {
+				tiles.add(tile);
+			}
+		}
+		if(tiles.isEmpty()) {
+			return;
+		}
+		Done done = new Done(tiles.size());
+		synchronized(this) {
+			if(!withinBudget(time)) {
+				return;
+			}
+			inFlight++;
+			tilesInFlight += tiles.size();
+			prefetches++;
+			started.add(time);
+		}
+		for(MarkerTile tile : tiles) {
+			startPrefetch(tile, done.listener(tile));
+		}
+	}
+
+	//Extrapolates the samples in the window. Returns null if the viewport is
+	//not predicted to move or grow enough to be worth a prefetch.
+	private int[] predict() {
+		if(samples.size() < 2) {
+			return null;
+		}
+		long[] first = samples.getFirst();
+		long[] last = samples.getLast();
+		long dt = last[0] - first[0];
+		if(dt <= 0 || first[3] <= 0 || first[4] <= 0) {
+			return null;
+		}
+		double ahead = (double) LOOKAHEAD / dt;
+		double zoom = Math.pow((double) last[3] / first[3], ahead);
+		zoom = Math.max(1 / MAX_ZOOM, Math.min(MAX_ZOOM, zoom));
+		double latSpan = last[3] * zoom;
+		double longSpan = last[4] * zoom;
+		double centerLat = last[1] + (last[1] - first[1]) * ahead;
+		double centerLong = last[2] + (last[2] - first[2]) * ahead;
+		//Zooming in needs nothing new, the markers are already there.
+		boolean moving = Math.abs(centerLat - last[1]) >= MIN_MOVE * last[3]
+				|| Math.abs(centerLong - last[2]) >= MIN_MOVE * last[4];
+		boolean growing = zoom >= 1 + MIN_MOVE;
+		if(!moving && !growing) {
+			return null;
+		}
+		return new int[] {
+				clamp(centerLat + latSpan / 2, 90000000), clamp(centerLong + longSpan / 2, 180000000),
+				clamp(centerLat - latSpan / 2, 90000000), clamp(centerLong - longSpan / 2, 180000000)};
+	}
+
+	private static int clamp(double value, int limit) {
+		return (int) Math.max(-limit, Math.min(limit, Math.round(value)));
+	}
+
+	//Forgets the prefetches started more than a minute ago, and tells whether
+	//another may be started.
+	private boolean withinBudget(long time) {
+		while(!started.isEmpty() && started.getFirst() <= time - 60 * 1000) {
+			started.removeFirst();
+		}
+		return inFlight < maxInFlight && started.size() < maxPerMinute;
+	}
+
+	//Remembers the tiles of a prefetch whose markers were stored, and frees
+	//the budget when all its tiles have finished.
+	private class Done {
+		private int pending;
+		private boolean stored;
+
+		Done(int pending) {
+			this.pending = pending;
+		}
+
+		NetworkOperationListener<List<GeoLocation>> listener(final MarkerTile tile) {
+			return new NetworkOperationListener<List<GeoLocation>>() {
+				public void operationExcecuted(OperationResult<List<GeoLocation>> result) {
+					synchronized(ViewportPrefetcher.this) {
+						tilesInFlight--;
+						if(result != null && !result.hasErrors() && result.getResult() != null) {
+							stored = true;
+							prefetched.add(tile);
+							if(prefetched.size() > MAX_PREFETCHED) {
+								Iterator<MarkerTile> eldest = prefetched.iterator();
+								eldest.next();
+								eldest.remove();
+							}
+						}
+						if(--pending == 0) {
+							inFlight--;
+							if(stored) {
+								completed++;
+							}
+						}
+					}
+				}
+			};
+		}
+	}
+}
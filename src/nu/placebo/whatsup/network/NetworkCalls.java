@@ -2,33 +2,99 @@ package nu.placebo.whatsup.network;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import nu.placebo.whatsup.constants.Constants;
 import nu.placebo.whatsup.model.SessionInfo;
 
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HTTP;
-
-import android.net.http.AndroidHttpClient;
+import org.apache.http.protocol.HttpContext;
 
 /**
- * 
+ *
  * Static methods for making calls to the server.
- * 
+ *
+ * All calls share one client, whose connections are pooled and kept alive,
+ * so repeated calls to the server skip the TCP setup. The pool holds
+ * ALLOWED_CONCURRENT_CALLS connections to the server, and one to spare for
+ * calls the user waits on, e.g. logging in, so they do not queue behind
+ * marker fetches. Connections idle for longer than the keep-alive time are
+ * closed. How many calls reused a connection is kept as a reuse rate.
+ *
+ * The body of a response is read before it is returned, so the connection
+ * is back in the pool by the time the caller sees the response, whether it
+ * reads the body or not.
+ *
  */
 
 public class NetworkCalls {
 
-	private static HttpClient client = getHttpClient();
-	private static boolean testing;
+	//The connections to the server that may be open at once.
+	private static final int MAX_CONNECTIONS_PER_ROUTE = Constants.ALLOWED_CONCURRENT_CALLS + 1;
+
+	//How long, in milliseconds, a connection is kept for reuse if the server
+	//does not say, and how often idle connections are looked for.
+	private static final long KEEP_ALIVE = 30 * 1000;
+	private static final long IDLE_CHECK_INTERVAL = 10 * 1000;
+
+	//How long, in milliseconds, to wait for a connection to be set up, for
+	//data, and for a connection from the pool.
+	private static final int CONNECTION_TIMEOUT = 60 * 1000;
+	private static final int SOCKET_TIMEOUT = 60 * 1000;
+	private static final long POOL_TIMEOUT = 60 * 1000;
+
+	//Closes the idle connections of the pool.
+	private static final ScheduledExecutorService evictor = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "NetworkCalls idle connections");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static final DefaultHttpClient client = getHttpClient();
+	private static int requests;
+	private static int connections;
 
 	public static HttpResponse performGetRequest(String query) {
 		HttpGet request = new HttpGet(query);
@@ -43,8 +109,75 @@ public class NetworkCalls {
 		return response;
 	}
 
-	private static HttpClient getHttpClient() {
-		return AndroidHttpClient.newInstance("");
+	private static DefaultHttpClient getHttpClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpProtocolParams.setUserAgent(params, "");
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		//A kept-alive connection may have been closed by the server, which
+		//the stale check finds before it is used.
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpClientParams.setRedirecting(params, false);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_PER_ROUTE * 2);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		final ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemes);
+
+		//The session is sent as a Cookie header of its own, so no cookie the
+		//server sets may be stored by the shared client and sent along.
+		DefaultHttpClient result = new DefaultHttpClient(manager, params) {
+			@Override
+			protected HttpContext createHttpContext() {
+				HttpContext context = super.createHttpContext();
+				context.removeAttribute(ClientContext.COOKIE_STORE);
+				return context;
+			}
+		};
+		result.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				HeaderElementIterator it = new BasicHeaderElementIterator(
+						response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+				while(it.hasNext()) {
+					HeaderElement e = it.nextElement();
+					if("timeout".equalsIgnoreCase(e.getName()) && e.getValue() != null) {
+						try {
+							return Long.parseLong(e.getValue()) * 1000;
+						} catch(NumberFormatException ignored) {
+						}
+					}
+				}
+				return KEEP_ALIVE;
+			}
+		});
+		//A connection that has sent no request before is a new one.
+		result.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException {
+				HttpConnection conn = (HttpConnection) context.getAttribute(
+						ExecutionContext.HTTP_CONNECTION);
+				synchronized(NetworkCalls.class) {
+					requests++;
+					if(conn != null && conn.getMetrics().getRequestCount() == 0) {
+						connections++;
+					}
+				}
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				manager.closeExpiredConnections();
+				manager.closeIdleConnections(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+			}
+		}, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		return result;
 	}
 
 	public static HttpResponse performPostRequest(String query,
@@ -71,15 +204,60 @@ public class NetworkCalls {
 		return response;
 	}
 
+	//Executes the request and reads the body, which releases the connection
+	//to the pool. If the body cannot be read, the connection is dropped.
 	private static HttpResponse execute(HttpUriRequest request)
 			throws ClientProtocolException, IOException {
-		if(!testing) {
-			return client.execute(request);
-		} else {
-			return getHttpClient().execute(request);
+		HttpResponse response = client.execute(request);
+		HttpEntity entity = response.getEntity();
+		if(entity != null) {
+			try {
+				response.setEntity(new BufferedHttpEntity(entity));
+			} catch(IOException e) {
+				request.abort();
+				throw e;
+			}
 		}
+		return response;
+	}
+
+	/**
+	 * @return the number of requests sent.
+	 */
+	public static synchronized int getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * @return the number of connections set up to send them.
+	 */
+	public static synchronized int getConnectionCount() {
+		return connections;
 	}
+
+	/**
+	 * @return the share of the requests sent on a connection kept alive from
+	 * an earlier one, or 0 if none has been sent.
+	 */
+	public static synchronized double getReuseRate() {
+		return (requests == 0 ? 0 : (double) (requests - connections) / requests);
+	}
+
+	/**
+	 * Sets whether the calls are made by the tests. Both share the pooled
+	 * client, but each time testing is set, the idle connections are closed
+	 * and the counters reset, so a test only sees its own calls.
+	 *
+	 * @param b true when testing.
+	 */
 	public static void setTesting(boolean b) {
-		testing = b;
+		if(!b) {
+			return;
+		}
+		synchronized(NetworkCalls.class) {
+			requests = 0;
+			connections = 0;
+		}
+		client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
 	}
 }